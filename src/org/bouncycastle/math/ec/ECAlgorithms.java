@@ -62,6 +62,12 @@ public class ECAlgorithms
     {
         int m = Math.max(k.bitLength(), l.bitLength());
         ECPoint Z = P.add(Q);
+
+        if (P instanceof ECPoint.Fp)
+        {
+            return implShamirsTrickJacobian(P, k, Q, l, Z, m);
+        }
+
         ECPoint R = P.getCurve().getInfinity();
 
         for (int i = m - 1; i >= 0; --i)
@@ -90,4 +96,40 @@ public class ECAlgorithms
 
         return R;
     }
+
+    /*
+     * The same loop over Fp, accumulating in Jacobian co-ordinates so that
+     * the additions of the affine P, Q and Z need no inversions.
+     */
+    private static ECPoint implShamirsTrickJacobian(ECPoint P, BigInteger k,
+        ECPoint Q, BigInteger l, ECPoint Z, int m)
+    {
+        FpJacobianPoint R = FpJacobianPoint.fromAffine(P.getCurve().getInfinity());
+
+        for (int i = m - 1; i >= 0; --i)
+        {
+            R = R.twice();
+
+            if (k.testBit(i))
+            {
+                if (l.testBit(i))
+                {
+                    R = R.add(Z);
+                }
+                else
+                {
+                    R = R.add(P);
+                }
+            }
+            else
+            {
+                if (l.testBit(i))
+                {
+                    R = R.add(Q);
+                }
+            }
+        }
+
+        return R.toAffine(false);
+    }
 }
@@ -6,26 +6,32 @@ import org.thoughtcrime.bouncycastle.asn1.x9.X9IntegerConverter;
 
 /**
  * base class for points on elliptic curves.
+ * <p>
+ * Points are immutable and may be shared between threads.  The multiplier
+ * and its precomputation are set at most once each and published through
+ * volatile fields, so concurrent multiplications of the same point need no
+ * lock once they are in place.
  */
 public abstract class ECPoint
 {
-    ECCurve        curve;
-    ECFieldElement x;
-    ECFieldElement y;
+    final ECCurve        curve;
+    final ECFieldElement x;
+    final ECFieldElement y;
 
-    protected boolean withCompression;
+    protected final boolean withCompression;
 
-    protected ECMultiplier multiplier = null;
+    protected volatile ECMultiplier multiplier = null;
 
-    protected PreCompInfo preCompInfo = null;
+    protected volatile PreCompInfo preCompInfo = null;
 
-    private static X9IntegerConverter converter = new X9IntegerConverter();
+    private static final X9IntegerConverter converter = new X9IntegerConverter();
 
-    protected ECPoint(ECCurve curve, ECFieldElement x, ECFieldElement y)
+    protected ECPoint(ECCurve curve, ECFieldElement x, ECFieldElement y, boolean withCompression)
     {
         this.curve = curve;
         this.x = x;
         this.y = y;
+        this.withCompression = withCompression;
     }
     
     public ECCurve getCurve()
@@ -118,12 +124,34 @@ public abstract class ECPoint
     /**
      * Sets the default <code>ECMultiplier</code>, unless already set. 
      */
-    synchronized void assertECMultiplier()
+    ECMultiplier assertECMultiplier()
     {
-        if (this.multiplier == null)
+        ECMultiplier multiplier = this.multiplier;
+
+        if (multiplier == null)
         {
-            this.multiplier = new FpNafMultiplier();
+            synchronized (this)
+            {
+                if (this.multiplier == null)
+                {
+                    this.multiplier = new FpNafMultiplier();
+                }
+
+                multiplier = this.multiplier;
+            }
         }
+
+        return multiplier;
+    }
+
+    /**
+     * Multiplies this point with a fixed-base comb from now on, which pays
+     * off for a point such as a curve's generator that is multiplied by many
+     * scalars.  The comb table is built by the next multiplication and kept.
+     */
+    public synchronized void useFixedBaseMultiplier()
+    {
+        this.multiplier = new FixedPointCombMultiplier();
     }
 
     /**
@@ -143,8 +171,7 @@ public abstract class ECPoint
             return this.curve.getInfinity();
         }
 
-        assertECMultiplier();
-        return this.multiplier.multiply(this, k, preCompInfo);
+        return assertECMultiplier().multiply(this, k, preCompInfo);
     }
 
     /**
@@ -175,14 +202,12 @@ public abstract class ECPoint
          */
         public Fp(ECCurve curve, ECFieldElement x, ECFieldElement y, boolean withCompression)
         {
-            super(curve, x, y);
+            super(curve, x, y, withCompression);
 
             if ((x != null && y == null) || (x == null && y != null))
             {
                 throw new IllegalArgumentException("Exactly one of the field elements is null");
             }
-
-            this.withCompression = withCompression;
         }
          
         /**
@@ -345,7 +370,7 @@ public abstract class ECPoint
          */
         public F2m(ECCurve curve, ECFieldElement x, ECFieldElement y, boolean withCompression)
         {
-            super(curve, x, y);
+            super(curve, x, y, withCompression);
 
             if ((x != null && y == null) || (x == null && y != null))
             {
@@ -363,8 +388,6 @@ public abstract class ECPoint
                     ECFieldElement.F2m.checkFieldElements(this.x, this.curve.getA());
                 }
             }
-            
-            this.withCompression = withCompression;
         }
 
         /**
@@ -373,7 +396,7 @@ public abstract class ECPoint
          */
         public F2m(ECCurve curve)
         {
-            super(curve, null, null);
+            super(curve, null, null, false);
         }
 
         /* (non-Javadoc)
@@ -0,0 +1,124 @@
+package org.bouncycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * Class implementing fixed-base comb multiplication, for a point over Fp that
+ * is multiplied by many scalars, such as a curve's generator.
+ * <p>
+ * A scalar of up to <code>width * spacing</code> bits is read as
+ * <code>width</code> rows of <code>spacing</code> bits, and each column of
+ * bits selects one precomputed point.  A multiplication then costs
+ * <code>spacing</code> doublings and at most as many additions, against one
+ * doubling per bit for {@link FpNafMultiplier}.  The table is built once and
+ * kept as the point's <code>PreCompInfo</code>; once it is published,
+ * concurrent multiplications read it without taking a lock.
+ */
+class FixedPointCombMultiplier implements ECMultiplier
+{
+    private static final int WIDTH = 5;
+
+    private final ECMultiplier fallback = new FpNafMultiplier();
+
+    public ECPoint multiply(ECPoint p, BigInteger k, PreCompInfo preCompInfo)
+    {
+        if (!(p instanceof ECPoint.Fp) || k.signum() < 0)
+        {
+            return fallback.multiply(p, k, preCompInfo);
+        }
+
+        FixedPointPreCompInfo combInfo = getPreCompInfo(p, preCompInfo);
+        ECPoint[] lookupTable = combInfo.getLookupTable();
+        int width = combInfo.getWidth();
+        int spacing = combInfo.getSpacing();
+
+        if (k.bitLength() > width * spacing)
+        {
+            return fallback.multiply(p, k, preCompInfo);
+        }
+
+        FpJacobianPoint R = FpJacobianPoint.fromAffine(p.getCurve().getInfinity());
+
+        for (int column = spacing - 1; column >= 0; --column)
+        {
+            R = R.twice();
+
+            int index = 0;
+
+            for (int row = width - 1; row >= 0; --row)
+            {
+                index <<= 1;
+
+                if (k.testBit(row * spacing + column))
+                {
+                    index |= 1;
+                }
+            }
+
+            if (index != 0)
+            {
+                R = R.add(lookupTable[index]);
+            }
+        }
+
+        return R.toAffine(p.isCompressed());
+    }
+
+    private static FixedPointPreCompInfo getPreCompInfo(ECPoint p, PreCompInfo preCompInfo)
+    {
+        if (preCompInfo instanceof FixedPointPreCompInfo)
+        {
+            return (FixedPointPreCompInfo)preCompInfo;
+        }
+
+        synchronized (p)
+        {
+            if (p.preCompInfo instanceof FixedPointPreCompInfo)
+            {
+                return (FixedPointPreCompInfo)p.preCompInfo;
+            }
+
+            FixedPointPreCompInfo combInfo = buildPreCompInfo(p);
+            p.setPreCompInfo(combInfo);
+
+            return combInfo;
+        }
+    }
+
+    private static FixedPointPreCompInfo buildPreCompInfo(ECPoint p)
+    {
+        int bits = ((ECCurve.Fp)p.getCurve()).getQ().bitLength();
+        int spacing = (bits + WIDTH - 1) / WIDTH;
+
+        // rows[i] = 2^(i * spacing) * p
+        ECPoint[] rows = new ECPoint[WIDTH];
+        rows[0] = p;
+
+        for (int i = 1; i < WIDTH; ++i)
+        {
+            FpJacobianPoint row = FpJacobianPoint.fromAffine(rows[i - 1]);
+
+            for (int j = 0; j < spacing; ++j)
+            {
+                row = row.twice();
+            }
+
+            rows[i] = row.toAffine(false);
+        }
+
+        ECPoint[] lookupTable = new ECPoint[1 << WIDTH];
+        lookupTable[0] = p.getCurve().getInfinity();
+
+        for (int i = 0; i < WIDTH; ++i)
+        {
+            int offset = 1 << i;
+
+            for (int j = 0; j < offset; ++j)
+            {
+                lookupTable[offset + j] = lookupTable[j].add(rows[i]);
+            }
+        }
+
+        return new FixedPointPreCompInfo(lookupTable, WIDTH, spacing);
+    }
+}
@@ -0,0 +1,40 @@
+package org.bouncycastle.math.ec;
+
+/**
+ * Class holding the comb table for the fixed-base multiplication in
+ * {@link FixedPointCombMultiplier}.
+ */
+class FixedPointPreCompInfo implements PreCompInfo
+{
+    /**
+     * The affine points sum(bit i of j * 2^(i * spacing) * p) for every
+     * j < 2^width.
+     */
+    private final ECPoint[] lookupTable;
+
+    private final int width;
+
+    private final int spacing;
+
+    FixedPointPreCompInfo(ECPoint[] lookupTable, int width, int spacing)
+    {
+        this.lookupTable = lookupTable;
+        this.width = width;
+        this.spacing = spacing;
+    }
+
+    ECPoint[] getLookupTable()
+    {
+        return lookupTable;
+    }
+
+    int getWidth()
+    {
+        return width;
+    }
+
+    int getSpacing()
+    {
+        return spacing;
+    }
+}
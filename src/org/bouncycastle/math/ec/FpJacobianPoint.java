@@ -0,0 +1,187 @@
+package org.bouncycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * A point on a curve over Fp in Jacobian projective co-ordinates, where
+ * (X, Y, Z) represents the affine point (X / Z^2, Y / Z^3) and Z = 0 the
+ * point at infinity.
+ * <p>
+ * Doubling, and adding a point given in affine co-ordinates, need no field
+ * inversion, so the multipliers work on these and pay for a single inversion
+ * when the result is converted back with {@link #toAffine(boolean)}.
+ * <p>
+ * Implementations may update the point in place, so callers must always
+ * continue with the returned point.
+ */
+abstract class FpJacobianPoint
+{
+    /**
+     * @param p an affine point on a curve over Fp.
+     */
+    static FpJacobianPoint fromAffine(ECPoint p)
+    {
+        ECCurve.Fp curve = (ECCurve.Fp)p.getCurve();
+
+        if (SecP256R1Field.isField(curve))
+        {
+            return new SecP256R1JacobianPoint(curve, p);
+        }
+
+        return Generic.fromAffine(p);
+    }
+
+    abstract boolean isInfinity();
+
+    abstract FpJacobianPoint twice();
+
+    /**
+     * Mixed addition: adds an affine point to this one.
+     */
+    abstract FpJacobianPoint add(ECPoint b);
+
+    abstract ECPoint toAffine(boolean withCompression);
+
+    /**
+     * Jacobian arithmetic on <code>BigInteger</code>s, for any curve over Fp.
+     */
+    static final class Generic extends FpJacobianPoint
+    {
+        private final ECCurve curve;
+        private final BigInteger q;
+        private final BigInteger a;
+        private final boolean aIsMinusThree;
+
+        private final BigInteger X;
+        private final BigInteger Y;
+        private final BigInteger Z;
+
+        private Generic(ECCurve curve, BigInteger q, BigInteger a, boolean aIsMinusThree,
+            BigInteger X, BigInteger Y, BigInteger Z)
+        {
+            this.curve = curve;
+            this.q = q;
+            this.a = a;
+            this.aIsMinusThree = aIsMinusThree;
+            this.X = X;
+            this.Y = Y;
+            this.Z = Z;
+        }
+
+        static Generic fromAffine(ECPoint p)
+        {
+            ECCurve.Fp curve = (ECCurve.Fp)p.getCurve();
+            BigInteger q = curve.getQ();
+            BigInteger a = curve.getA().toBigInteger();
+            boolean aIsMinusThree = a.equals(q.subtract(ECConstants.THREE));
+
+            if (p.isInfinity())
+            {
+                return new Generic(curve, q, a, aIsMinusThree,
+                    ECConstants.ONE, ECConstants.ONE, ECConstants.ZERO);
+            }
+
+            return new Generic(curve, q, a, aIsMinusThree,
+                p.getX().toBigInteger(), p.getY().toBigInteger(), ECConstants.ONE);
+        }
+
+        boolean isInfinity()
+        {
+            return Z.signum() == 0;
+        }
+
+        // dbl-2007-bl, or dbl-2001-b when a = -3
+        FpJacobianPoint twice()
+        {
+            if (isInfinity() || Y.signum() == 0)
+            {
+                return infinity();
+            }
+
+            BigInteger YY = Y.multiply(Y).mod(q);
+            BigInteger ZZ = Z.multiply(Z).mod(q);
+            BigInteger S = X.multiply(YY).shiftLeft(2).mod(q);
+            BigInteger M;
+
+            if (aIsMinusThree)
+            {
+                M = X.subtract(ZZ).multiply(X.add(ZZ)).multiply(ECConstants.THREE).mod(q);
+            }
+            else
+            {
+                M = X.multiply(X).multiply(ECConstants.THREE).add(a.multiply(ZZ.multiply(ZZ).mod(q))).mod(q);
+            }
+
+            BigInteger X3 = M.multiply(M).subtract(S.shiftLeft(1)).mod(q);
+            BigInteger Y3 = M.multiply(S.subtract(X3)).subtract(YY.multiply(YY).shiftLeft(3)).mod(q);
+            BigInteger Z3 = Y.multiply(Z).shiftLeft(1).mod(q);
+
+            return new Generic(curve, q, a, aIsMinusThree, X3, Y3, Z3);
+        }
+
+        FpJacobianPoint add(ECPoint b)
+        {
+            if (b.isInfinity())
+            {
+                return this;
+            }
+
+            BigInteger x2 = b.getX().toBigInteger();
+            BigInteger y2 = b.getY().toBigInteger();
+
+            if (isInfinity())
+            {
+                return new Generic(curve, q, a, aIsMinusThree, x2, y2, ECConstants.ONE);
+            }
+
+            BigInteger ZZ = Z.multiply(Z).mod(q);
+            BigInteger U2 = x2.multiply(ZZ).mod(q);
+            BigInteger S2 = y2.multiply(Z).mod(q).multiply(ZZ).mod(q);
+            BigInteger H = U2.subtract(X).mod(q);
+            BigInteger r = S2.subtract(Y).mod(q);
+
+            if (H.signum() == 0)
+            {
+                if (r.signum() == 0)
+                {
+                    // b = this, i.e. this must be doubled
+                    return twice();
+                }
+
+                // b = -this, i.e. the result is the point at infinity
+                return infinity();
+            }
+
+            BigInteger HH = H.multiply(H).mod(q);
+            BigInteger HHH = HH.multiply(H).mod(q);
+            BigInteger V = X.multiply(HH).mod(q);
+
+            BigInteger X3 = r.multiply(r).subtract(HHH).subtract(V.shiftLeft(1)).mod(q);
+            BigInteger Y3 = r.multiply(V.subtract(X3)).subtract(Y.multiply(HHH)).mod(q);
+            BigInteger Z3 = Z.multiply(H).mod(q);
+
+            return new Generic(curve, q, a, aIsMinusThree, X3, Y3, Z3);
+        }
+
+        ECPoint toAffine(boolean withCompression)
+        {
+            if (isInfinity())
+            {
+                return curve.getInfinity();
+            }
+
+            BigInteger zInv = Z.modInverse(q);
+            BigInteger zInv2 = zInv.multiply(zInv).mod(q);
+            BigInteger x = X.multiply(zInv2).mod(q);
+            BigInteger y = Y.multiply(zInv2).mod(q).multiply(zInv).mod(q);
+
+            return new ECPoint.Fp(curve, curve.fromBigInteger(x), curve.fromBigInteger(y), withCompression);
+        }
+
+        private Generic infinity()
+        {
+            return new Generic(curve, q, a, aIsMinusThree,
+                ECConstants.ONE, ECConstants.ONE, ECConstants.ZERO);
+        }
+    }
+}
@@ -19,6 +19,13 @@ class FpNafMultiplier implements ECMultiplier
         BigInteger h = e.multiply(BigInteger.valueOf(3));
 
         ECPoint neg = p.negate();
+
+        if (p instanceof ECPoint.Fp)
+        {
+            return multiplyJacobian(p, neg, e, h);
+        }
+
+
         ECPoint R = p;
 
         for (int i = h.bitLength() - 2; i > 0; --i)
@@ -36,4 +43,28 @@ class FpNafMultiplier implements ECMultiplier
 
         return R;
     }
+
+    /**
+     * The same NAF walk, accumulating in Jacobian co-ordinates so that only
+     * the final conversion back to affine needs an inversion.
+     */
+    private ECPoint multiplyJacobian(ECPoint p, ECPoint neg, BigInteger e, BigInteger h)
+    {
+        FpJacobianPoint R = FpJacobianPoint.fromAffine(p);
+
+        for (int i = h.bitLength() - 2; i > 0; --i)
+        {
+            R = R.twice();
+
+            boolean hBit = h.testBit(i);
+            boolean eBit = e.testBit(i);
+
+            if (hBit != eBit)
+            {
+                R = R.add(hBit ? p : neg);
+            }
+        }
+
+        return R.toAffine(p.isCompressed());
+    }
 }
@@ -0,0 +1,302 @@
+package org.bouncycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic modulo the NIST P-256 prime p = 2^256 - 2^224 + 2^192 + 2^96 - 1.
+ * <p>
+ * Field elements are eight 32-bit limbs, least significant first, holding a
+ * value in [0, p).  Products are reduced with the fast reduction of FIPS 186-3
+ * D.2.3, which only adds and subtracts words of the double-width product.
+ * Every method writes its result into a caller supplied array, which may be
+ * one of its inputs, so that the point arithmetic can run without allocating.
+ */
+final class SecP256R1Field
+{
+    static final BigInteger P = new BigInteger(
+        "FFFFFFFF00000001000000000000000000000000FFFFFFFFFFFFFFFFFFFFFFFF", 16);
+
+    private static final BigInteger A = P.subtract(ECConstants.THREE);
+
+    private static final int[] PInts = fromBigInteger(P);
+
+    private static final long M = 0xFFFFFFFFL;
+
+    private SecP256R1Field()
+    {
+    }
+
+    /**
+     * @return true if <code>curve</code> is defined over the P-256 field with
+     * a = -3, which the Jacobian doubling formulae rely on.
+     */
+    static boolean isField(ECCurve.Fp curve)
+    {
+        return P.equals(curve.getQ()) && A.equals(curve.getA().toBigInteger());
+    }
+
+    static int[] create()
+    {
+        return new int[8];
+    }
+
+    static int[] createExt()
+    {
+        return new int[16];
+    }
+
+    static int[] fromBigInteger(BigInteger x)
+    {
+        byte[] bytes = x.toByteArray();
+        int[] z = new int[8];
+
+        for (int i = 0; i < bytes.length && i < 32; ++i)
+        {
+            z[i >>> 2] |= (bytes[bytes.length - 1 - i] & 0xFF) << ((i & 3) << 3);
+        }
+
+        return z;
+    }
+
+    static BigInteger toBigInteger(int[] x)
+    {
+        byte[] bytes = new byte[33];
+
+        for (int i = 0; i < 8; ++i)
+        {
+            int limb = x[i];
+            int offset = 32 - (i << 2);
+
+            bytes[offset] = (byte)limb;
+            bytes[offset - 1] = (byte)(limb >>> 8);
+            bytes[offset - 2] = (byte)(limb >>> 16);
+            bytes[offset - 3] = (byte)(limb >>> 24);
+        }
+
+        return new BigInteger(bytes);
+    }
+
+    static void copy(int[] x, int[] z)
+    {
+        System.arraycopy(x, 0, z, 0, 8);
+    }
+
+    static void setOne(int[] z)
+    {
+        z[0] = 1;
+
+        for (int i = 1; i < 8; ++i)
+        {
+            z[i] = 0;
+        }
+    }
+
+    static void setZero(int[] z)
+    {
+        for (int i = 0; i < 8; ++i)
+        {
+            z[i] = 0;
+        }
+    }
+
+    static boolean isZero(int[] x)
+    {
+        int bits = 0;
+
+        for (int i = 0; i < 8; ++i)
+        {
+            bits |= x[i];
+        }
+
+        return bits == 0;
+    }
+
+    static void add(int[] x, int[] y, int[] z)
+    {
+        long c = 0;
+
+        for (int i = 0; i < 8; ++i)
+        {
+            c += (x[i] & M) + (y[i] & M);
+            z[i] = (int)c;
+            c >>>= 32;
+        }
+
+        if (c != 0 || isAtLeastP(z))
+        {
+            subtractP(z);
+        }
+    }
+
+    static void twice(int[] x, int[] z)
+    {
+        add(x, x, z);
+    }
+
+    static void subtract(int[] x, int[] y, int[] z)
+    {
+        long c = 0;
+
+        for (int i = 0; i < 8; ++i)
+        {
+            c += (x[i] & M) - (y[i] & M);
+            z[i] = (int)c;
+            c >>= 32;
+        }
+
+        if (c != 0)
+        {
+            addP(z);
+        }
+    }
+
+    /**
+     * @param tt scratch space from {@link #createExt()}.
+     */
+    static void multiply(int[] x, int[] y, int[] z, int[] tt)
+    {
+        for (int i = 0; i < 16; ++i)
+        {
+            tt[i] = 0;
+        }
+
+        for (int i = 0; i < 8; ++i)
+        {
+            long xi = x[i] & M;
+            long c = 0;
+
+            for (int j = 0; j < 8; ++j)
+            {
+                c += xi * (y[j] & M) + (tt[i + j] & M);
+                tt[i + j] = (int)c;
+                c >>>= 32;
+            }
+
+            tt[i + 8] = (int)c;
+        }
+
+        reduce(tt, z);
+    }
+
+    /**
+     * @param tt scratch space from {@link #createExt()}.
+     */
+    static void square(int[] x, int[] z, int[] tt)
+    {
+        multiply(x, x, z, tt);
+    }
+
+    /**
+     * Reduces a 512-bit product, per FIPS 186-3 D.2.3:
+     * s1 + 2 s2 + 2 s3 + s4 + s5 - d1 - d2 - d3 - d4, taken word by word.
+     */
+    static void reduce(int[] tt, int[] z)
+    {
+        long c0 = tt[0] & M, c1 = tt[1] & M, c2 = tt[2] & M, c3 = tt[3] & M;
+        long c4 = tt[4] & M, c5 = tt[5] & M, c6 = tt[6] & M, c7 = tt[7] & M;
+        long c8 = tt[8] & M, c9 = tt[9] & M, c10 = tt[10] & M, c11 = tt[11] & M;
+        long c12 = tt[12] & M, c13 = tt[13] & M, c14 = tt[14] & M, c15 = tt[15] & M;
+
+        long c = 0;
+
+        c += c0 + c8 + c9 - c11 - c12 - c13 - c14;
+        z[0] = (int)c; c >>= 32;
+        c += c1 + c9 + c10 - c12 - c13 - c14 - c15;
+        z[1] = (int)c; c >>= 32;
+        c += c2 + c10 + c11 - c13 - c14 - c15;
+        z[2] = (int)c; c >>= 32;
+        c += c3 + 2 * (c11 + c12) + c13 - c15 - c8 - c9;
+        z[3] = (int)c; c >>= 32;
+        c += c4 + 2 * (c12 + c13) + c14 - c9 - c10;
+        z[4] = (int)c; c >>= 32;
+        c += c5 + 2 * (c13 + c14) + c15 - c10 - c11;
+        z[5] = (int)c; c >>= 32;
+        c += c6 + 3 * c14 + 2 * c15 + c13 - c8 - c9;
+        z[6] = (int)c; c >>= 32;
+        c += c7 + 3 * c15 + c8 - c10 - c11 - c12 - c13;
+        z[7] = (int)c; c >>= 32;
+
+        // Fold the overflow back in, using 2^256 = 2^224 - 2^192 - 2^96 + 1 (mod p).
+        while (c != 0)
+        {
+            c = addWordMultiple(z, c);
+        }
+
+        if (isAtLeastP(z))
+        {
+            subtractP(z);
+        }
+    }
+
+    /**
+     * @return The limbs of x^-1.  Used once per conversion back to affine.
+     */
+    static int[] invert(int[] x)
+    {
+        return fromBigInteger(toBigInteger(x).modInverse(P));
+    }
+
+    private static long addWordMultiple(int[] z, long k)
+    {
+        long c = 0;
+
+        c += (z[0] & M) + k;
+        z[0] = (int)c; c >>= 32;
+        c += (z[1] & M);
+        z[1] = (int)c; c >>= 32;
+        c += (z[2] & M);
+        z[2] = (int)c; c >>= 32;
+        c += (z[3] & M) - k;
+        z[3] = (int)c; c >>= 32;
+        c += (z[4] & M);
+        z[4] = (int)c; c >>= 32;
+        c += (z[5] & M);
+        z[5] = (int)c; c >>= 32;
+        c += (z[6] & M) - k;
+        z[6] = (int)c; c >>= 32;
+        c += (z[7] & M) + k;
+        z[7] = (int)c; c >>= 32;
+
+        return c;
+    }
+
+    private static boolean isAtLeastP(int[] x)
+    {
+        for (int i = 7; i >= 0; --i)
+        {
+            long xi = x[i] & M;
+            long pi = PInts[i] & M;
+
+            if (xi != pi)
+            {
+                return xi > pi;
+            }
+        }
+
+        return true;
+    }
+
+    private static void addP(int[] z)
+    {
+        long c = 0;
+
+        for (int i = 0; i < 8; ++i)
+        {
+            c += (z[i] & M) + (PInts[i] & M);
+            z[i] = (int)c;
+            c >>>= 32;
+        }
+    }
+
+    private static void subtractP(int[] z)
+    {
+        long c = 0;
+
+        for (int i = 0; i < 8; ++i)
+        {
+            c += (z[i] & M) - (PInts[i] & M);
+            z[i] = (int)c;
+            c >>= 32;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.bouncycastle.math.ec;
+
+/**
+ * Jacobian arithmetic for P-256 on {@link SecP256R1Field} limbs.
+ * <p>
+ * The point is updated in place and keeps its own scratch space, so a
+ * multiplication allocates nothing between {@link FpJacobianPoint#fromAffine}
+ * and {@link #toAffine(boolean)}.  The limbs of the few affine points a
+ * multiplier keeps adding are converted once and remembered.
+ */
+final class SecP256R1JacobianPoint extends FpJacobianPoint
+{
+    // Enough for a FixedPointCombMultiplier table.
+    private static final int AFFINE_CACHE_SIZE = 32;
+
+    private final ECCurve.Fp curve;
+
+    private final int[] X = SecP256R1Field.create();
+    private final int[] Y = SecP256R1Field.create();
+    private final int[] Z = SecP256R1Field.create();
+
+    private final int[] t1 = SecP256R1Field.create();
+    private final int[] t2 = SecP256R1Field.create();
+    private final int[] t3 = SecP256R1Field.create();
+    private final int[] t4 = SecP256R1Field.create();
+    private final int[] t5 = SecP256R1Field.create();
+    private final int[] tt = SecP256R1Field.createExt();
+
+    private final ECPoint[] cachedPoints = new ECPoint[AFFINE_CACHE_SIZE];
+    private final int[][] cachedX = new int[AFFINE_CACHE_SIZE][];
+    private final int[][] cachedY = new int[AFFINE_CACHE_SIZE][];
+    private int cacheCount = 0;
+
+    SecP256R1JacobianPoint(ECCurve.Fp curve, ECPoint p)
+    {
+        this.curve = curve;
+
+        if (!p.isInfinity())
+        {
+            setAffine(getAffineX(p), getAffineY(p));
+        }
+    }
+
+    boolean isInfinity()
+    {
+        return SecP256R1Field.isZero(Z);
+    }
+
+    // dbl-2001-b, since a = -3
+    FpJacobianPoint twice()
+    {
+        if (isInfinity())
+        {
+            return this;
+        }
+
+        if (SecP256R1Field.isZero(Y))
+        {
+            SecP256R1Field.setZero(Z);
+            return this;
+        }
+
+        int[] YY = t1, ZZ = t2, S = t3, M = t4;
+
+        SecP256R1Field.square(Y, YY, tt);
+        SecP256R1Field.square(Z, ZZ, tt);
+
+        // S = 4 X YY
+        SecP256R1Field.multiply(X, YY, S, tt);
+        SecP256R1Field.twice(S, S);
+        SecP256R1Field.twice(S, S);
+
+        // M = 3 (X - ZZ)(X + ZZ)
+        SecP256R1Field.subtract(X, ZZ, t5);
+        SecP256R1Field.add(X, ZZ, ZZ);
+        SecP256R1Field.multiply(t5, ZZ, M, tt);
+        SecP256R1Field.twice(M, t5);
+        SecP256R1Field.add(t5, M, M);
+
+        // Z3 = 2 Y Z
+        SecP256R1Field.multiply(Y, Z, Z, tt);
+        SecP256R1Field.twice(Z, Z);
+
+        // X3 = M^2 - 2 S
+        SecP256R1Field.square(M, X, tt);
+        SecP256R1Field.twice(S, t5);
+        SecP256R1Field.subtract(X, t5, X);
+
+        // Y3 = M (S - X3) - 8 YY^2
+        SecP256R1Field.subtract(S, X, t5);
+        SecP256R1Field.multiply(M, t5, Y, tt);
+        SecP256R1Field.square(YY, t5, tt);
+        SecP256R1Field.twice(t5, t5);
+        SecP256R1Field.twice(t5, t5);
+        SecP256R1Field.twice(t5, t5);
+        SecP256R1Field.subtract(Y, t5, Y);
+
+        return this;
+    }
+
+    // madd-2007-bl
+    FpJacobianPoint add(ECPoint b)
+    {
+        if (b.isInfinity())
+        {
+            return this;
+        }
+
+        int[] x2 = getAffineX(b);
+        int[] y2 = getAffineY(b);
+
+        if (isInfinity())
+        {
+            setAffine(x2, y2);
+            return this;
+        }
+
+        int[] ZZ = t1, H = t2, r = t3, HH = t4, V = t5;
+
+        SecP256R1Field.square(Z, ZZ, tt);
+
+        // H = x2 ZZ - X
+        SecP256R1Field.multiply(x2, ZZ, H, tt);
+        SecP256R1Field.subtract(H, X, H);
+
+        // r = y2 Z ZZ - Y
+        SecP256R1Field.multiply(y2, Z, r, tt);
+        SecP256R1Field.multiply(r, ZZ, r, tt);
+        SecP256R1Field.subtract(r, Y, r);
+
+        if (SecP256R1Field.isZero(H))
+        {
+            if (SecP256R1Field.isZero(r))
+            {
+                // b = this, i.e. this must be doubled
+                return twice();
+            }
+
+            // b = -this, i.e. the result is the point at infinity
+            SecP256R1Field.setZero(Z);
+            return this;
+        }
+
+        int[] HHH = ZZ;
+
+        SecP256R1Field.square(H, HH, tt);
+        SecP256R1Field.multiply(HH, H, HHH, tt);
+        SecP256R1Field.multiply(X, HH, V, tt);
+
+        // Z3 = Z H
+        SecP256R1Field.multiply(Z, H, Z, tt);
+
+        // X3 = r^2 - HHH - 2 V
+        SecP256R1Field.square(r, X, tt);
+        SecP256R1Field.subtract(X, HHH, X);
+        SecP256R1Field.twice(V, HH);
+        SecP256R1Field.subtract(X, HH, X);
+
+        // Y3 = r (V - X3) - Y HHH
+        SecP256R1Field.subtract(V, X, V);
+        SecP256R1Field.multiply(r, V, V, tt);
+        SecP256R1Field.multiply(Y, HHH, Y, tt);
+        SecP256R1Field.subtract(V, Y, Y);
+
+        return this;
+    }
+
+    ECPoint toAffine(boolean withCompression)
+    {
+        if (isInfinity())
+        {
+            return curve.getInfinity();
+        }
+
+        int[] zInv = SecP256R1Field.invert(Z);
+        int[] zInv2 = t1, x = t2, y = t3;
+
+        SecP256R1Field.square(zInv, zInv2, tt);
+        SecP256R1Field.multiply(X, zInv2, x, tt);
+        SecP256R1Field.multiply(Y, zInv2, y, tt);
+        SecP256R1Field.multiply(y, zInv, y, tt);
+
+        return new ECPoint.Fp(curve,
+            curve.fromBigInteger(SecP256R1Field.toBigInteger(x)),
+            curve.fromBigInteger(SecP256R1Field.toBigInteger(y)),
+            withCompression);
+    }
+
+    private void setAffine(int[] x, int[] y)
+    {
+        SecP256R1Field.copy(x, X);
+        SecP256R1Field.copy(y, Y);
+        SecP256R1Field.setOne(Z);
+    }
+
+    private int[] getAffineX(ECPoint p)
+    {
+        return cachedX[cache(p)];
+    }
+
+    private int[] getAffineY(ECPoint p)
+    {
+        return cachedY[cache(p)];
+    }
+
+    private int cache(ECPoint p)
+    {
+        for (int i = 0; i < cacheCount; ++i)
+        {
+            if (cachedPoints[i] == p)
+            {
+                return i;
+            }
+        }
+
+        int index = cacheCount < AFFINE_CACHE_SIZE ? cacheCount++ : AFFINE_CACHE_SIZE - 1;
+
+        cachedPoints[index] = p;
+        cachedX[index] = SecP256R1Field.fromBigInteger(p.getX().toBigInteger());
+        cachedY[index] = SecP256R1Field.fromBigInteger(p.getY().toBigInteger());
+
+        return index;
+    }
+}
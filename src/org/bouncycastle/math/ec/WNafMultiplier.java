@@ -230,10 +230,12 @@ class WNafMultiplier implements ECMultiplier
         }
 
         // Set PreCompInfo in ECPoint, such that it is available for next
-        // multiplication.
-        wnafPreCompInfo.setPreComp(preComp);
-        wnafPreCompInfo.setTwiceP(twiceP);
-        p.setPreCompInfo(wnafPreCompInfo);
+        // multiplication.  A new instance is published rather than updating
+        // the one other threads may be reading.
+        WNafPreCompInfo newPreCompInfo = new WNafPreCompInfo();
+        newPreCompInfo.setPreComp(preComp);
+        newPreCompInfo.setTwiceP(twiceP);
+        p.setPreCompInfo(newPreCompInfo);
         return q;
     }
 
@@ -98,6 +98,8 @@ public class ApplicationPreferencesActivity extends PassphraseRequiredSherlockPr
   public static final String REGISTERED_GCM_PREF  = "pref_gcm_registered";
   public static final String GCM_PASSWORD_PREF    = "pref_gcm_password";
 
+  public static final String DECRYPTION_WORKERS_PREF = "pref_decryption_workers";
+
   private final DynamicTheme dynamicTheme = new DynamicTheme();
 
   @Override
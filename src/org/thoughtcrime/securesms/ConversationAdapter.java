@@ -47,7 +47,8 @@ import java.util.Map;
  */
 public class ConversationAdapter extends CursorAdapter implements AbsListView.RecyclerListener {
 
-  private static final int MAX_CACHE_SIZE = 40;
+  private static final int MAX_CACHE_SIZE  = 40;
+  private static final int PREFETCH_WINDOW = 20;
   private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
       Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
 
@@ -57,6 +58,8 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
   private final boolean groupThread;
   private final LayoutInflater inflater;
 
+  private int lastPrefetchBlock = -1;
+
   public ConversationAdapter(Context context, MasterSecret masterSecret,
                              Handler failedIconClickHandler, boolean groupThread)
   {
@@ -74,11 +77,19 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
     ConversationItem item       = (ConversationItem)view;
     long id                     = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
     String type                 = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+    prefetchAround(cursor);
+
     MessageRecord messageRecord = getMessageRecord(id, cursor, type);
 
     item.set(masterSecret, messageRecord, failedIconClickHandler, groupThread);
   }
 
+  @Override
+  public void changeCursor(Cursor cursor) {
+    lastPrefetchBlock = -1;
+    super.changeCursor(cursor);
+  }
+
   @Override
   public View newView(Context context, Cursor cursor, ViewGroup parent) {
     View view;
@@ -112,6 +123,18 @@ public class ConversationAdapter extends CursorAdapter implements AbsListView.Re
     else                            return 1;
   }
 
+  private void prefetchAround(Cursor cursor) {
+    int block = cursor.getPosition() / PREFETCH_WINDOW;
+
+    if (block == lastPrefetchBlock)
+      return;
+
+    lastPrefetchBlock = block;
+    DatabaseFactory.getMmsSmsDatabase(context).prefetchBodies(masterSecret, cursor,
+                                                              (block - 1) * PREFETCH_WINDOW,
+                                                              3 * PREFETCH_WINDOW);
+  }
+
   private MessageRecord getMessageRecord(long messageId, Cursor cursor, String type) {
     SoftReference<MessageRecord> reference = messageRecordCache.get(type + messageId);
 
@@ -11,11 +11,14 @@ import android.os.Handler;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
 import android.text.ClipboardManager;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CursorAdapter;
+import android.widget.ListView;
 
 import com.actionbarsherlock.app.SherlockListFragment;
 
@@ -32,12 +35,18 @@ public class ConversationFragment extends SherlockListFragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
 
+  private static final String TAG = "ConversationFragment";
+
   private ConversationFragmentListener listener;
 
   private MasterSecret masterSecret;
   private Recipients   recipients;
   private long         threadId;
 
+  private long    loadStartTime;
+  private boolean rendered;
+  private boolean loadingOlder;
+
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle bundle) {
     return inflater.inflate(R.layout.conversation_fragment, container, false);
@@ -171,18 +180,53 @@ public class ConversationFragment extends SherlockListFragment
                                                   new FailedIconClickHandler(),
                                                   !this.recipients.isSingleRecipient()));
       getListView().setRecyclerListener((ConversationAdapter)getListAdapter());
+      getListView().setOnScrollListener(new BackfillScrollListener());
+
+      this.loadStartTime = System.currentTimeMillis();
+      this.rendered      = false;
+      this.loadingOlder  = false;
+
       getLoaderManager().initLoader(0, null, this);
     }
   }
 
   @Override
   public Loader<Cursor> onCreateLoader(int arg0, Bundle arg1) {
-    return new ConversationLoader(getActivity(), threadId);
+    return new ConversationLoader(getActivity(), threadId, ConversationLoader.DEFAULT_PAGE_SIZE);
   }
 
   @Override
   public void onLoadFinished(Loader<Cursor> arg0, Cursor cursor) {
-    ((CursorAdapter)getListAdapter()).changeCursor(cursor);
+    CursorAdapter adapter  = (CursorAdapter)getListAdapter();
+    ListView      list     = getListView();
+    int           oldCount = adapter.getCount();
+
+    adapter.changeCursor(cursor);
+
+    if (loadingOlder) {
+      loadingOlder = false;
+
+      // Hold the rows on screen in place as the older page lands above them.
+      int  added = adapter.getCount() - oldCount;
+      View top   = list.getChildAt(0);
+
+      if (added > 0)
+        list.setSelectionFromTop(list.getFirstVisiblePosition() + added, top == null ? 0 : top.getTop());
+    }
+
+    if (!rendered) {
+      rendered = true;
+
+      final int count = adapter.getCount();
+
+      list.post(new Runnable() {
+        @Override
+        public void run() {
+          Log.w(TAG, "First render of " + count + " messages after " +
+                     (System.currentTimeMillis() - loadStartTime) + "ms");
+        }
+      });
+    }
   }
 
   @Override
@@ -190,6 +234,22 @@ public class ConversationFragment extends SherlockListFragment
     ((CursorAdapter)getListAdapter()).changeCursor(null);
   }
 
+  private class BackfillScrollListener implements AbsListView.OnScrollListener {
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if (firstVisibleItem != 0 || totalItemCount == 0 || loadingOlder || !rendered)
+        return;
+
+      Loader<Cursor> loader = getLoaderManager().getLoader(0);
+
+      if (loader != null && ((ConversationLoader)loader).loadOlder())
+        loadingOlder = true;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+  }
+
   private class FailedIconClickHandler extends Handler {
     @Override
     public void handleMessage(android.os.Message message) {
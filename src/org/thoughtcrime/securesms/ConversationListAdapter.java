@@ -44,8 +44,11 @@ public class ConversationListAdapter extends CursorAdapter implements AbsListVie
   private final Context context;
   private final LayoutInflater inflater;
 
+  private static final int PREFETCH_WINDOW = 20;
+
   private final Set<Long> batchSet = Collections.synchronizedSet(new HashSet<Long>());
   private boolean batchMode        = false;
+  private int lastPrefetchBlock    = -1;
 
   public ConversationListAdapter(Context context, Cursor cursor, MasterSecret masterSecret) {
     super(context, cursor);
@@ -62,6 +65,8 @@ public class ConversationListAdapter extends CursorAdapter implements AbsListVie
   @Override
   public void bindView(View view, Context context, Cursor cursor) {
     if (masterSecret != null) {
+      prefetchAround(context, cursor);
+
       ThreadDatabase.Reader reader = DatabaseFactory.getThreadDatabase(context).readerFor(cursor, masterSecret);
       ThreadRecord record          = reader.getCurrent();
 
@@ -69,6 +74,24 @@ public class ConversationListAdapter extends CursorAdapter implements AbsListVie
     }
   }
 
+  @Override
+  public void changeCursor(Cursor cursor) {
+    lastPrefetchBlock = -1;
+    super.changeCursor(cursor);
+  }
+
+  private void prefetchAround(Context context, Cursor cursor) {
+    int block = cursor.getPosition() / PREFETCH_WINDOW;
+
+    if (block == lastPrefetchBlock)
+      return;
+
+    lastPrefetchBlock = block;
+    DatabaseFactory.getThreadDatabase(context).prefetchSnippets(masterSecret, cursor,
+                                                                (block - 1) * PREFETCH_WINDOW,
+                                                                3 * PREFETCH_WINDOW);
+  }
+
   public void addToBatchSet(long threadId) {
     batchSet.add(threadId);
   }
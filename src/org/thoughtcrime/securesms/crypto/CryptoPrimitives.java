@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2013 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Per-thread instances of the JCE primitives we use on every message and
+ * every database row, so that the provider lookup in getInstance() is paid
+ * once per thread rather than once per operation.
+ *
+ * An instance returned here belongs to the calling thread and must not be
+ * held past the operation it was fetched for; anything that keeps a cipher
+ * for the life of a stream should still create its own.
+ */
+
+public class CryptoPrimitives {
+
+  private static final ThreadLocal<Cipher> aesCtr = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher("AES/CTR/NoPadding");
+    }
+  };
+
+  private static final ThreadLocal<Cipher> aesCbc = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      return newCipher("AES/CBC/PKCS5Padding");
+    }
+  };
+
+  private static final ThreadLocal<Mac> hmacSha1 = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance("HmacSHA1");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<MessageDigest> sha1 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      return newDigest("SHA-1");
+    }
+  };
+
+  private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      return newDigest("SHA-256");
+    }
+  };
+
+  public static Cipher getAesCtrCipher() {
+    return aesCtr.get();
+  }
+
+  public static Cipher getAesCbcCipher() {
+    return aesCbc.get();
+  }
+
+  public static Mac getHmacSha1() {
+    return hmacSha1.get();
+  }
+
+  public static MessageDigest getSha1() {
+    MessageDigest digest = sha1.get();
+    digest.reset();
+
+    return digest;
+  }
+
+  public static MessageDigest getSha256() {
+    MessageDigest digest = sha256.get();
+    digest.reset();
+
+    return digest;
+  }
+
+  private static Cipher newCipher(String transformation) {
+    try {
+      return Cipher.getInstance(transformation);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static MessageDigest newDigest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
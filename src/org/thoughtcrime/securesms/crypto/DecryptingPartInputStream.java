@@ -51,6 +51,7 @@ public class DecryptingPartInputStream extends FileInputStream {
   private Mac mac;
 	
   private boolean done;
+  private byte[] internalBuffer;
   private long totalDataSize;
   private long totalRead;
 	
@@ -125,9 +126,11 @@ public class DecryptingPartInputStream extends FileInputStream {
     if (length + totalRead > totalDataSize)
       length = (int)(totalDataSize - totalRead);
 		
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length);
-    totalRead            += read;
+    if (internalBuffer == null || internalBuffer.length < length)
+      internalBuffer = new byte[length];
+
+    int read   = super.read(internalBuffer, 0, length);
+    totalRead += read;
 		
     try {
       mac.update(internalBuffer, 0, read);
@@ -38,8 +38,10 @@ import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.WorkerThread;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
@@ -49,28 +51,37 @@ import ws.com.google.android.mms.pdu.RetrieveConf;
 import ws.com.google.android.mms.pdu.SendReq;
 
 /**
- * A work queue for processing a number of encryption operations.
+ * A work queue for processing a number of encryption operations.  Work is
+ * spread across a small pool of worker threads, partitioned by originator.
  *
  * @author Moxie Marlinspike
  */
 
 public class DecryptingQueue {
 
-  private static final List<Runnable> workQueue = new LinkedList<Runnable>();
+  private static final int DEFAULT_WORKER_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  private static final int MAX_WORKER_COUNT     = 8;
+  private static final int PARTITION_DIGITS     = 7;
 
-  static {
-    Thread workerThread = new WorkerThread(workQueue, "Async Decryption Thread");
-    workerThread.start();
-  }
+  private static final AtomicLong processedCount = new AtomicLong(0);
+
+  // Started on first use, sized by DECRYPTION_WORKERS_PREF.  Guarded by the class.
+  private static List<List<Runnable>> workQueues;
+
+  // Guards the counters below, which track the wall-clock time during
+  // which any decryption was queued or running.
+  private static final Object STATS_LOCK   = new Object();
+  private static       int    pendingCount = 0;
+  private static       long   busySince    = 0;
+  private static       long   busyTime     = 0;
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
                                         long messageId, long threadId, MultimediaMessagePdu mms)
   {
     MmsDecryptionItem runnable = new MmsDecryptionItem(context, masterSecret, messageId, threadId, mms);
-    synchronized (workQueue) {
-      workQueue.add(runnable);
-      workQueue.notifyAll();
-    }
+    String originator          = mms.getFrom() == null ? null : mms.getFrom().getString();
+
+    enqueue(context, originator, runnable);
   }
 
   public static void scheduleDecryption(Context context, MasterSecret masterSecret,
@@ -79,12 +90,142 @@ public class DecryptingQueue {
   {
     DecryptionWorkItem runnable = new DecryptionWorkItem(context, masterSecret, messageId, threadId,
                                                          originator, body, isSecureMessage, isKeyExchange);
+    enqueue(context, originator, runnable);
+  }
+
+  /**
+   * @return The number of decryptions waiting to run across all workers.
+   */
+  public static int getQueueDepth() {
+    synchronized (STATS_LOCK) {
+      return pendingCount;
+    }
+  }
+
+  /**
+   * @return The number of decryptions completed since process start.
+   */
+  public static long getProcessedCount() {
+    return processedCount.get();
+  }
+
+  /**
+   * @return Completed decryptions per second of wall-clock time spent with
+   * work queued, or 0 if none have run.
+   */
+  public static double getThroughput() {
+    long processed = processedCount.get();
+    long elapsed;
+
+    synchronized (STATS_LOCK) {
+      elapsed = busyTime;
+
+      if (pendingCount > 0)
+        elapsed += System.currentTimeMillis() - busySince;
+    }
+
+    if (processed == 0 || elapsed == 0) return 0;
+    else                                return (processed * 1000.0) / elapsed;
+  }
+
+  /**
+   * Work is partitioned by originator, so that messages belonging to the same
+   * session are always decrypted in arrival order on the same worker, while
+   * messages from different contacts can be decrypted concurrently.
+   */
+  private static void enqueue(Context context, String originator, final Runnable runnable) {
+    List<List<Runnable>> workQueues = getWorkQueues(context);
+    List<Runnable>       workQueue  = workQueues.get(getPartition(originator, workQueues.size()));
+
+    synchronized (STATS_LOCK) {
+      if (pendingCount++ == 0)
+        busySince = System.currentTimeMillis();
+    }
+
     synchronized (workQueue) {
-      workQueue.add(runnable);
+      workQueue.add(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            runnable.run();
+          } finally {
+            processedCount.incrementAndGet();
+
+            boolean drained;
+
+            synchronized (STATS_LOCK) {
+              drained = (--pendingCount == 0);
+
+              if (drained)
+                busyTime += System.currentTimeMillis() - busySince;
+            }
+
+            if (drained)
+              Log.w("DecryptingQueue", "Drained, processed: " + getProcessedCount() +
+                                       " throughput: " + getThroughput() + "/s");
+          }
+        }
+      });
       workQueue.notifyAll();
     }
   }
 
+  /**
+   * Hashes the trailing digits of a phone number, so that the formats one
+   * contact's number arrives in (with or without a country code, say) land
+   * on the same worker without a database lookup on the receiving thread.
+   * Anything else, such as an email address, is hashed as-is.
+   */
+  private static int getPartition(String originator, int workerCount) {
+    if (originator == null) return 0;
+
+    int hash   = 0;
+    int digits = 0;
+
+    for (int i=originator.length()-1;i>=0 && digits < PARTITION_DIGITS;i--) {
+      char c = originator.charAt(i);
+
+      if (Character.isDigit(c)) {
+        hash = 31 * hash + c;
+        digits++;
+      }
+    }
+
+    if (digits < PARTITION_DIGITS)
+      hash = originator.hashCode();
+
+    return (hash & 0x7fffffff) % workerCount;
+  }
+
+  /**
+   * Starts the workers the first time there's work for them.  The number of
+   * workers can be set with {@link ApplicationPreferencesActivity#DECRYPTION_WORKERS_PREF},
+   * and otherwise defaults to one per core, up to four.  A change takes
+   * effect the next time the process starts.
+   */
+  private static synchronized List<List<Runnable>> getWorkQueues(Context context) {
+    if (workQueues == null) {
+      int workerCount = PreferenceManager.getDefaultSharedPreferences(context)
+                                         .getInt(ApplicationPreferencesActivity.DECRYPTION_WORKERS_PREF,
+                                                 DEFAULT_WORKER_COUNT);
+
+      workerCount = Math.max(1, Math.min(MAX_WORKER_COUNT, workerCount));
+      workQueues  = new ArrayList<List<Runnable>>(workerCount);
+
+      for (int i=0;i<workerCount;i++) {
+        List<Runnable> workQueue = new LinkedList<Runnable>();
+        Thread workerThread      = new WorkerThread(workQueue, "Async Decryption Thread " + i);
+
+        workQueues.add(workQueue);
+        workerThread.start();
+      }
+
+      Log.w("DecryptingQueue", "Started " + workerCount + " decryption workers.");
+    }
+
+    return workQueues;
+  }
+
   public static void schedulePendingDecrypts(Context context, MasterSecret masterSecret) {
     Log.w("DecryptingQueue", "Processing pending decrypts...");
 
@@ -187,7 +328,7 @@ public class DecryptingQueue {
 
         byte[] plaintextPduBytes;
 
-        synchronized (SessionCipher.CIPHER_LOCK) {
+        synchronized (SessionCipher.getLock(context, recipient)) {
           Log.w("DecryptingQueue", "Decrypting: " + Hex.toString(ciphertextPduBytes));
           SessionCipher cipher = new SessionCipher(context, masterSecret, recipient, new TextTransport());
           try {
@@ -255,13 +396,21 @@ public class DecryptingQueue {
       EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
       String plaintextBody;
 
-      synchronized (SessionCipher.CIPHER_LOCK) {
-        try {
-          Log.w("DecryptingQueue", "Parsing recipient for originator: " + originator);
-          Recipients recipients = RecipientFactory.getRecipientsFromString(context, originator, false);
-          Recipient recipient   = recipients.getPrimaryRecipient();
-          Log.w("DecryptingQueue", "Parsed Recipient: " + recipient.getNumber());
+      Recipient recipient;
 
+      try {
+        Log.w("DecryptingQueue", "Parsing recipient for originator: " + originator);
+        Recipients recipients = RecipientFactory.getRecipientsFromString(context, originator, false);
+        recipient             = recipients.getPrimaryRecipient();
+        Log.w("DecryptingQueue", "Parsed Recipient: " + recipient.getNumber());
+      } catch (RecipientFormattingException e) {
+        Log.w("DecryptionQueue", e);
+        database.markAsDecryptFailed(messageId);
+        return;
+      }
+
+      synchronized (SessionCipher.getLock(context, recipient)) {
+        try {
           if (!KeyUtil.isSessionFor(context, recipient)) {
             Log.w("DecryptingQueue", "No such recipient session...");
             database.markAsNoSession(messageId);
@@ -274,10 +423,6 @@ public class DecryptingQueue {
           Log.w("DecryptionQueue", e);
           database.markAsDecryptFailed(messageId);
           return;
-        } catch (RecipientFormattingException e) {
-          Log.w("DecryptionQueue", e);
-          database.markAsDecryptFailed(messageId);
-          return;
         }
       }
 
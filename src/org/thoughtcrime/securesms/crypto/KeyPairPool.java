@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2011 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.crypto;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.thoughtcrime.securesms.database.keys.KeyPairPoolRecord;
+import org.thoughtcrime.securesms.database.keys.Record;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands out session key pairs that were generated in the background, so
+ * that initiating a key exchange or advancing a local key doesn't have to
+ * wait on key generation.
+ *
+ * The pool is refilled on a single minimum priority thread whenever it's
+ * drawn from, and whenever the MasterSecret becomes available.  If it runs
+ * dry, a key pair is generated on the spot, as before.
+ *
+ * A drawn pair is removed from the pool on disk before it's returned, so
+ * that it can never be handed out twice.  Refills only run while the
+ * KeyCachingService holds the MasterSecret, and queued refills don't keep
+ * a reference to it.
+ */
+public class KeyPairPool {
+
+  private static final int POOL_SIZE = 6;
+
+  private static final Object          POOL_LOCK      = new Object();
+  private static final AtomicBoolean   refillPending  = new AtomicBoolean(false);
+  private static final ExecutorService refillExecutor = Util.newSingleThreadedLifoExecutor();
+
+  // The cached MasterSecret, or null while locked.  Guarded by POOL_LOCK.
+  private static MasterSecret refillSecret;
+
+  public static AsymmetricCipherKeyPair take(Context context, MasterSecret masterSecret) {
+    AsymmetricCipherKeyPair keyPair;
+
+    synchronized (POOL_LOCK) {
+      KeyPairPoolRecord record = new KeyPairPoolRecord(context, masterSecret);
+      keyPair                  = record.remove();
+
+      if (keyPair != null) {
+        record.save();
+
+        try {
+          Record.flush(context, record);
+        } catch (IOException ioe) {
+          Log.w("KeyPairPool", ioe);
+          keyPair = null;
+        }
+      }
+    }
+
+    scheduleRefill(context);
+
+    if (keyPair == null) {
+      Log.w("KeyPairPool", "Pool empty, generating key pair...");
+      keyPair = KeyUtil.generateKeyPair();
+    }
+
+    return keyPair;
+  }
+
+  /**
+   * Called by the KeyCachingService once the MasterSecret is cached, to
+   * allow refills and top the pool up.
+   */
+  public static void setMasterSecret(Context context, MasterSecret masterSecret) {
+    synchronized (POOL_LOCK) {
+      refillSecret = masterSecret;
+    }
+
+    scheduleRefill(context);
+  }
+
+  /**
+   * Called by the KeyCachingService when the MasterSecret is cleared.  A
+   * refill that's queued or running stops without adding anything else.
+   */
+  public static void clearMasterSecret() {
+    synchronized (POOL_LOCK) {
+      refillSecret = null;
+    }
+  }
+
+  private static void scheduleRefill(Context context) {
+    synchronized (POOL_LOCK) {
+      if (refillSecret == null)
+        return;
+    }
+
+    if (!refillPending.compareAndSet(false, true))
+      return;
+
+    final Context applicationContext = context.getApplicationContext();
+
+    refillExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        refillPending.set(false);
+        refill(applicationContext);
+      }
+    });
+  }
+
+  private static void refill(Context context) {
+    int generated = 0;
+
+    while (true) {
+      MasterSecret masterSecret;
+
+      synchronized (POOL_LOCK) {
+        masterSecret = refillSecret;
+
+        if (masterSecret == null || new KeyPairPoolRecord(context, masterSecret).size() >= POOL_SIZE)
+          break;
+      }
+
+      // Generate outside the lock, so that a draw never waits on a refill.
+      AsymmetricCipherKeyPair keyPair = KeyUtil.generateKeyPair();
+
+      if (keyPair == null)
+        break;
+
+      synchronized (POOL_LOCK) {
+        if (refillSecret != masterSecret)
+          break;
+
+        KeyPairPoolRecord record = new KeyPairPoolRecord(context, masterSecret);
+
+        if (record.size() >= POOL_SIZE)
+          break;
+
+        record.add(keyPair);
+        record.save();
+        generated++;
+      }
+    }
+
+    if (generated > 0)
+      Log.w("KeyPairPool", "Added " + generated + " key pairs to the pool.");
+  }
+}
@@ -55,25 +55,23 @@ public class KeyUtil {
 	
   private static final ECCurve curve = new ECCurve.Fp(q, a, b);
   private static final ECPoint g     = new ECPoint.Fp(curve, x, y, true);
+
+  static {
+    g.useFixedBaseMultiplier();
+  }
 	
   public static final ECDomainParameters domainParameters = new ECDomainParameters(curve, g, n);
 		
   public static ECPoint decodePoint(byte[] pointBytes) {
-    synchronized (curve) {
-      return curve.decodePoint(pointBytes);
-    }
+    return curve.decodePoint(pointBytes);
   }
 	
   public static byte[] encodePoint(ECPoint point) {
-    synchronized (curve) {
-      return point.getEncoded();
-    }
+    return point.getEncoded();
   }
 	
   public static BigInteger calculateAgreement(ECDHBasicAgreement agreement, ECPublicKeyParameters remoteKey) {
-    synchronized (curve) {
-      return agreement.calculateAgreement(remoteKey);
-    }
+    return agreement.calculateAgreement(remoteKey);
   }
 	
   public static void abortSessionFor(Context context, Recipient recipient) {
@@ -106,13 +104,19 @@ public class KeyUtil {
       SecureRandom secureRandom = SecureRandom.getInstance("SHA1PRNG");
       int initialId             = secureRandom.nextInt(4094) + 1;
 						
-      KeyPair currentPair       = new KeyPair(initialId, KeyUtil.generateKeyPair(), masterSecret);
-      KeyPair nextPair          = new KeyPair(initialId + 1, KeyUtil.generateKeyPair(), masterSecret);
+      KeyPair currentPair       = new KeyPair(initialId, KeyPairPool.take(context, masterSecret), masterSecret);
+      KeyPair nextPair          = new KeyPair(initialId + 1, KeyPairPool.take(context, masterSecret), masterSecret);
       LocalKeyRecord record     = new LocalKeyRecord(context, masterSecret, recipient);
 			
       record.setCurrentKeyPair(currentPair);
       record.setNextKeyPair(nextPair);
       record.save();
+
+      if (SessionRecord.hasSession(context, recipient)) {
+        SessionRecord sessionRecord = new SessionRecord(context, masterSecret, recipient);
+        sessionRecord.clearSessionKeys();
+        sessionRecord.save();
+      }
 			
       return record;
     } catch (NoSuchAlgorithmException e) {
@@ -122,15 +126,13 @@ public class KeyUtil {
 
   public static AsymmetricCipherKeyPair generateKeyPair() {
     try {
-      synchronized (curve) {
-        ECKeyGenerationParameters keyParamters = new ECKeyGenerationParameters(domainParameters, SecureRandom.getInstance("SHA1PRNG"));
-        ECKeyPairGenerator generator           = new ECKeyPairGenerator();
-        generator.init(keyParamters);
-				
-        AsymmetricCipherKeyPair keyPair        = generator.generateKeyPair();
-				
-        return cloneKeyPairWithPointCompression(keyPair);
-      }
+      ECKeyGenerationParameters keyParamters = new ECKeyGenerationParameters(domainParameters, SecureRandom.getInstance("SHA1PRNG"));
+      ECKeyPairGenerator generator           = new ECKeyPairGenerator();
+      generator.init(keyParamters);
+
+      AsymmetricCipherKeyPair keyPair        = generator.generateKeyPair();
+
+      return cloneKeyPairWithPointCompression(keyPair);
     } catch (NoSuchAlgorithmException nsae) {
       Log.w("keyutil", nsae);
       return null;
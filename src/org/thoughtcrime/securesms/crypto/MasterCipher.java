@@ -22,7 +22,9 @@ import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -54,21 +56,9 @@ import android.util.Log;
 public class MasterCipher {
 
   private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
 	
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;		
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException nspe) {
-      throw new AssertionError(nspe);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    }
+    this.masterSecret = masterSecret;
   }
 	
   public byte[] encryptKey(ECPrivateKeyParameters params) {
@@ -85,6 +75,25 @@ public class MasterCipher {
     return new String(decodeAndDecryptBytes(body));
   }
 	
+  /**
+   * Decrypts a window of bodies in one call, such as the next rows of a
+   * conversation cursor.  Bodies that fail to decrypt come back as null.
+   */
+  public List<String> decryptBodies(List<String> bodies) {
+    List<String> plaintexts = new ArrayList<String>(bodies.size());
+
+    for (String body : bodies) {
+      try {
+        plaintexts.add(decryptBody(body));
+      } catch (InvalidMessageException ime) {
+        Log.w("MasterCipher", ime);
+        plaintexts.add(null);
+      }
+    }
+
+    return plaintexts;
+  }
+
   public ECPrivateKeyParameters decryptKey(byte[] key) {
     try {
       BigInteger d = new BigInteger(decryptBytes(key));
@@ -187,7 +196,7 @@ public class MasterCipher {
   }
 	
   private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
+    Mac hmac = CryptoPrimitives.getHmacSha1();
     hmac.init(key);
 
     return hmac;
@@ -204,18 +213,18 @@ public class MasterCipher {
   }
 	
   private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
+    Cipher cipher      = CryptoPrimitives.getAesCbcCipher();
+    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, cipher.getBlockSize());
+    cipher.init(Cipher.DECRYPT_MODE, key, iv);
 		
-    return decryptingCipher;
+    return cipher;
   }
 	
   private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
+    Cipher cipher = CryptoPrimitives.getAesCbcCipher();
+    cipher.init(Cipher.ENCRYPT_MODE, key);
 		
-    return encryptingCipher;
+    return cipher;
   }
 	
 }
@@ -17,7 +17,6 @@
 package org.thoughtcrime.securesms.crypto;
 
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import javax.crypto.Mac;
@@ -33,7 +32,7 @@ public class MessageMac {
 	
   private static byte[] calculateMac(byte[] message, int offset, int length, SecretKeySpec macKey) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA1");
+      Mac mac = CryptoPrimitives.getHmacSha1();
       mac.init(macKey);
 		
       assert(mac.getMacLength() >= MAC_LENGTH);
@@ -44,8 +43,6 @@ public class MessageMac {
       System.arraycopy(macBytes, 0, truncatedMacBytes, 0, truncatedMacBytes.length);
 			
       return truncatedMacBytes;
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
     } catch (InvalidKeyException e) {
       throw new IllegalArgumentException(e);
     }
@@ -17,7 +17,6 @@
 package org.thoughtcrime.securesms.crypto;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.math.ec.ECPoint;
@@ -87,13 +86,8 @@ public class PublicKey {
   }
 	
   public byte[] getFingerprintBytes() {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-1");
-      return md.digest(serialize());
-    } catch (NoSuchAlgorithmException nsae) {
-      Log.w("LocalKeyPair", nsae);
-      throw new IllegalArgumentException("SHA-1 isn't supported!");
-    }
+    MessageDigest md = CryptoPrimitives.getSha1();
+    return md.digest(serialize());
   }
 	
   public byte[] serialize() {
@@ -21,20 +21,20 @@ import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
 import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 import org.thoughtcrime.securesms.database.keys.InvalidKeyIdException;
 import org.thoughtcrime.securesms.database.keys.LocalKeyRecord;
+import org.thoughtcrime.securesms.database.keys.Record;
 import org.thoughtcrime.securesms.database.keys.RemoteKeyRecord;
 import org.thoughtcrime.securesms.database.keys.SessionKey;
 import org.thoughtcrime.securesms.database.keys.SessionRecord;
@@ -52,8 +52,14 @@ import android.util.Log;
  */
 
 public class SessionCipher {
-	
-  public static final Object CIPHER_LOCK = new Object();
+
+  private static final int      LOCK_STRIPES = 32;
+  private static final Object[] CIPHER_LOCKS = new Object[LOCK_STRIPES];
+
+  static {
+    for (int i=0;i<CIPHER_LOCKS.length;i++)
+      CIPHER_LOCKS[i] = new Object();
+  }
 	
   public static final int CIPHER_KEY_LENGTH = 16;
   public static final int MAC_KEY_LENGTH    = 20;
@@ -61,6 +67,7 @@ public class SessionCipher {
   public static final int ENCRYPTED_MESSAGE_OVERHEAD              = Message.HEADER_LENGTH + MessageMac.MAC_LENGTH;
   //	public static final int ENCRYPTED_SINGLE_MESSAGE_BODY_MAX_SIZE  = SmsTransportDetails.SINGLE_MESSAGE_MAX_BYTES - ENCRYPTED_MESSAGE_OVERHEAD;
 	
+  private final Context          context;
   private final LocalKeyRecord   localRecord;
   private final RemoteKeyRecord  remoteRecord;
   private final SessionRecord    sessionRecord;
@@ -69,12 +76,26 @@ public class SessionCipher {
 	
   public SessionCipher(Context context, MasterSecret masterSecret, Recipient recipient, TransportDetails transportDetails) {
     Log.w("SessionCipher", "Constructing session cipher...");
+    this.context          = context;
     this.masterSecret     = masterSecret;
     this.localRecord      = new LocalKeyRecord(context, masterSecret, recipient);
     this.remoteRecord     = new RemoteKeyRecord(context, recipient);
     this.sessionRecord    = new SessionRecord(context, masterSecret, recipient);
     this.transportDetails = transportDetails;
   }
+
+  /**
+   * Returns the monitor that must be held while a SessionCipher for this
+   * recipient is constructed and used.  Locks are striped by canonical
+   * address id, so operations on the same session are serialized while
+   * unrelated sessions can usually proceed in parallel.
+   */
+  public static Object getLock(Context context, Recipient recipient) {
+    long recipientId = CanonicalAddressDatabase.getInstance(context).getCanonicalAddress(recipient.getNumber());
+    int  hash        = (int)(recipientId ^ (recipientId >>> 32));
+
+    return CIPHER_LOCKS[(hash & 0x7fffffff) % LOCK_STRIPES];
+  }
   
   public byte[] encryptMessage(byte[] messageText) {
     Log.w("SessionCipher", "Encrypting message...");
@@ -87,10 +108,13 @@ public class SessionCipher {
       byte[]message         = buildMessageFromCiphertext(cipherText);
       byte[]messageWithMac  = MessageMac.buildMessageWithMac(message, sessionKey.getMacKey());
 
-      sessionRecord.setSessionKey(sessionKey);
+      sessionRecord.setSessionKey(Cipher.ENCRYPT_MODE, sessionKey);
       sessionRecord.incrementCounter();
       sessionRecord.save();
-      
+
+      // A counter that's reloaded after a crash would repeat this keystream.
+      Record.flush(context, sessionRecord, localRecord, remoteRecord);
+
       return transportDetails.encodeMessage(messageWithMac);
     } catch (IllegalBlockSizeException e) {
       throw new IllegalArgumentException(e);
@@ -98,6 +122,8 @@ public class SessionCipher {
       throw new IllegalArgumentException(e);
     } catch (InvalidKeyIdException e) {
       throw new IllegalArgumentException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to persist session state", e);
     }
   }
   
@@ -120,7 +146,8 @@ public class SessionCipher {
       localRecord.advanceKeyIfNecessary(message.getReceiverKeyId());
       localRecord.save();
 			
-      sessionRecord.setSessionKey(sessionKey);
+      sessionRecord.setSessionKey(Cipher.DECRYPT_MODE, sessionKey);
+      sessionRecord.retainLiveSessionKeys(localRecord, remoteRecord);
       sessionRecord.setSessionVersion(message.getHighestMutuallySupportedVersion());
       sessionRecord.save();
 			
@@ -139,14 +166,10 @@ public class SessionCipher {
   }
 		
   private SecretKeySpec deriveMacSecret(SecretKeySpec key) {
-    try {
-      MessageDigest md = MessageDigest.getInstance("SHA-1");
-      byte[] secret    = md.digest(key.getEncoded());
-		
-      return new SecretKeySpec(secret, "HmacSHA1");
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException("SHA-1 Not Supported!",e);
-    }
+    MessageDigest md = CryptoPrimitives.getSha1();
+    byte[] secret    = md.digest(key.getEncoded());
+
+    return new SecretKeySpec(secret, "HmacSHA1");
   }
 	
   private byte[] buildMessageFromCiphertext(byte[] cipherText) {
@@ -172,7 +195,7 @@ public class SessionCipher {
 	
   private Cipher getCipher(int mode, SecretKeySpec key, int counter)  {
     try {
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      Cipher cipher = CryptoPrimitives.getAesCtrCipher();
 
       byte[] ivBytes = new byte[16];
       Conversions.mediumToByteArray(ivBytes, 0, counter);
@@ -181,10 +204,6 @@ public class SessionCipher {
       cipher.init(mode, key, iv);
 		
       return cipher;
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException("AES Not Supported!");
-    } catch (NoSuchPaddingException e) {
-      throw new IllegalArgumentException("NoPadding Not Supported!");
     } catch (InvalidKeyException e) {
       Log.w("SessionCipher", e);
       throw new IllegalArgumentException("Invaid Key?");
@@ -221,15 +240,7 @@ public class SessionCipher {
   }
 	
   private byte[] deriveBytes(byte[] seed, int bytesNeeded) {
-    MessageDigest md;
-
-    try {
-      md = MessageDigest.getInstance("SHA-256");
-    } catch (NoSuchAlgorithmException e) {
-      Log.w("SessionCipher",e);
-      throw new IllegalArgumentException("SHA-256 Not Supported!");
-    }
-		
+    MessageDigest md = CryptoPrimitives.getSha256();
     int rounds = bytesNeeded / md.getDigestLength();
 		
     for (int i=1;i<=rounds;i++) {
@@ -243,8 +254,14 @@ public class SessionCipher {
 	
   private SessionKey getSessionKey(int mode, int localKeyId, int remoteKeyId) throws InvalidKeyIdException {
     Log.w("SessionCipher", "Getting session key for local: " + localKeyId + " remote: " + remoteKeyId);
-    SessionKey sessionKey = sessionRecord.getSessionKey(localKeyId, remoteKeyId);
-    if (sessionKey != null) return sessionKey;
+    SessionKey sessionKey = sessionRecord.getSessionKey(mode, localKeyId, remoteKeyId);
+
+    if (sessionKey != null) {
+      // A remembered key is only good while both of its ids are still live.
+      localRecord.getKeyPairForId(localKeyId);
+      remoteRecord.getKeyForId(remoteKeyId);
+      return sessionKey;
+    }
 		
     BigInteger sharedSecret = calculateSharedSecret(localKeyId, remoteKeyId);
     SecretKeySpec cipherKey = deriveCipherSecret(mode, sharedSecret, localKeyId, remoteKeyId);
@@ -20,6 +20,8 @@ import android.content.Context;
 import android.os.Environment;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.database.keys.RecordCache;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -30,12 +32,19 @@ public class ApplicationExporter {
 
   public static void exportToSd(Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForExport();
+    RecordCache.flush();
     exportDirectory(context, "");
   }
 
-  public static void importFromSd(Context context) throws NoExternalStorageException, IOException {
+  public static void importFromSd(final Context context) throws NoExternalStorageException, IOException {
     verifyExternalStorageForImport();
-    importDirectory(context, "");
+
+    RecordCache.replace(new RecordCache.Replacement() {
+      @Override
+      public void run() throws IOException {
+        importDirectory(context, "");
+      }
+    });
   }
 
   private static String getExportDirectoryPath() {
@@ -24,11 +24,13 @@ import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
-import java.util.Collections;
-import java.util.HashMap;
+import org.thoughtcrime.securesms.util.ConcurrentLongMap;
+
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CanonicalAddressDatabase {
 
@@ -41,13 +43,18 @@ public class CanonicalAddressDatabase {
   private static final String DATABASE_CREATE  = "CREATE TABLE " + TABLE + " (" + ID_COLUMN + " integer PRIMARY KEY, " + ADDRESS_COLUMN + " TEXT NOT NULL);";
   private static final String[] ID_PROJECTION  = {ID_COLUMN};
   private static final String SELECTION        = "PHONE_NUMBERS_EQUAL(" + ADDRESS_COLUMN + ", ?)";
+  private static final int    MAX_IN_ARGUMENTS = 500;
   private static final Object lock             = new Object();
 
   private static CanonicalAddressDatabase instance;
   private final DatabaseHelper databaseHelper;
 
-  private final Map<String,Long> addressCache = Collections.synchronizedMap(new HashMap<String,Long>());
-  private final Map<String,String> idCache    = Collections.synchronizedMap(new HashMap<String,String>());
+  private final Map<String,Long>          addressCache = new ConcurrentHashMap<String,Long>();
+  private final ConcurrentLongMap<String> idCache      = new ConcurrentLongMap<String>(256);
+
+  // Serializes the lookup-or-insert on a cache miss.  Matching is fuzzy, so
+  // a UNIQUE constraint can't stop two threads minting ids for one number.
+  private final Object insertLock = new Object();
 
   public static CanonicalAddressDatabase getInstance(Context context) {
     synchronized (lock) {
@@ -77,7 +84,7 @@ public class CanonicalAddressDatabase {
         if (address == null || address.trim().length() == 0)
           address = "Anonymous";
 
-        idCache.put(id+"", address);
+        idCache.put(id, address);
         addressCache.put(address, id);
       }
     } finally {
@@ -89,6 +96,15 @@ public class CanonicalAddressDatabase {
   public String getAddressFromId(String id) {
     if (id == null || id.trim().equals("")) return "Anonymous";
 
+    try {
+      return getAddressFromId(Long.parseLong(id.trim()));
+    } catch (NumberFormatException e) {
+      Log.w("CanonicalAddressDatabase", e);
+      return "Anonymous";
+    }
+  }
+
+  public String getAddressFromId(long id) {
     String cachedAddress = idCache.get(id);
 
     if (cachedAddress != null)
@@ -125,18 +141,41 @@ public class CanonicalAddressDatabase {
   }
 
   public long getCanonicalAddress(String address) {
-    long canonicalAddress;
+    Long canonicalAddress = addressCache.get(address);
 
-    if ((canonicalAddress = getCanonicalAddressFromCache(address)) != -1)
+    if (canonicalAddress != null)
       return canonicalAddress;
 
-    canonicalAddress = getCanonicalAddressFromDatabase(address);
-    addressCache.put(address, canonicalAddress);
+    synchronized (insertLock) {
+      canonicalAddress = addressCache.get(address);
+
+      if (canonicalAddress != null)
+        return canonicalAddress;
 
-    return canonicalAddress;
+      long databaseAddress = getCanonicalAddressFromDatabase(address);
+      addressCache.put(address, databaseAddress);
+
+      return databaseAddress;
+    }
   }
 
+  /**
+   * Resolves a batch of addresses, looking up all of the ones that aren't
+   * cached with a single query.  Only exact matches are found that way; the
+   * rest fall back to the fuzzy phone number match one at a time.
+   */
   public List<Long> getCanonicalAddresses(List<String> addresses) {
+    List<String> misses = new ArrayList<String>();
+
+    for (String address : addresses) {
+      if (!addressCache.containsKey(address))
+        misses.add(address);
+    }
+
+    for (int i=0;i<misses.size();i+=MAX_IN_ARGUMENTS) {
+      fillCacheForAddresses(misses.subList(i, Math.min(misses.size(), i + MAX_IN_ARGUMENTS)));
+    }
+
     List<Long> addressList = new LinkedList<Long>();
 
     for (String address : addresses) {
@@ -146,11 +185,35 @@ public class CanonicalAddressDatabase {
     return addressList;
   }
 
-  private long getCanonicalAddressFromCache(String address) {
-    if (addressCache.containsKey(address))
-      return Long.valueOf(addressCache.get(address));
+  private void fillCacheForAddresses(List<String> addresses) {
+    StringBuilder selection = new StringBuilder(ADDRESS_COLUMN + " IN (");
+
+    for (int i=0;i<addresses.size();i++) {
+      if (i != 0) selection.append(',');
+      selection.append('?');
+    }
+
+    selection.append(')');
 
-    return -1L;
+    Cursor cursor = null;
+
+    try {
+      SQLiteDatabase db = databaseHelper.getReadableDatabase();
+      cursor            = db.query(TABLE, null, selection.toString(),
+                                   addresses.toArray(new String[addresses.size()]),
+                                   null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long id        = cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
+        String address = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS_COLUMN));
+
+        idCache.put(id, address);
+        addressCache.put(address, id);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
   }
 
   private long getCanonicalAddressFromDatabase(String address) {
@@ -164,7 +227,12 @@ public class CanonicalAddressDatabase {
         ContentValues contentValues = new ContentValues(1);
         contentValues.put(ADDRESS_COLUMN, address);
 
-        return db.insert(TABLE, ADDRESS_COLUMN, contentValues);
+        long id = db.insert(TABLE, ADDRESS_COLUMN, contentValues);
+
+        if (id != -1)
+          idCache.put(id, address);
+
+        return id;
       }
 
       return cursor.getLong(cursor.getColumnIndexOrThrow(ID_COLUMN));
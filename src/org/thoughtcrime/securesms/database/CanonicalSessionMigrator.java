@@ -19,6 +19,8 @@ package org.thoughtcrime.securesms.database;
 import android.content.Context;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.database.keys.RecordCache;
+
 import java.io.File;
 
 public class CanonicalSessionMigrator {
@@ -64,6 +66,10 @@ public class CanonicalSessionMigrator {
       }
     }
 
+    // Reopen the record store so that it picks up the files moved above.
+    RecordCache.flush();
+    RecordCache.clear();
+
     context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit().putBoolean("canonicalized", true).commit();
   }
 
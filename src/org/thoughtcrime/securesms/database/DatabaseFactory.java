@@ -51,7 +51,8 @@ public class DatabaseFactory {
   private static final int INTRODUCED_MMS_BODY_VERSION      = 7;
   private static final int INTRODUCED_MMS_FROM_VERSION      = 8;
   private static final int INTRODUCED_TOFU_IDENTITY_VERSION = 9;
-  private static final int DATABASE_VERSION                 = 9;
+  private static final int INTRODUCED_THREAD_DATE_VERSION   = 10;
+  private static final int DATABASE_VERSION                 = 10;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -156,150 +157,25 @@ public class DatabaseFactory {
                                         DatabaseUpgradeActivity.DatabaseUpgradeListener listener)
   {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.beginTransaction();
 
     if (fromVersion < DatabaseUpgradeActivity.NO_MORE_KEY_EXCHANGE_PREFIX_VERSION) {
-      String KEY_EXCHANGE             = "?TextSecureKeyExchange";
-      String PROCESSED_KEY_EXCHANGE   = "?TextSecureKeyExchangd";
-      String STALE_KEY_EXCHANGE       = "?TextSecureKeyExchangs";
-      int ROW_LIMIT                   = 500;
-
       MasterCipher masterCipher = new MasterCipher(masterSecret);
-      int smsCount              = 0;
-      int threadCount           = 0;
-      int skip                  = 0;
-
-      Cursor cursor = db.query("sms", new String[] {"COUNT(*)"}, "type & " + 0x80000000 + " != 0",
-                               null, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        smsCount = cursor.getInt(0);
-        cursor.close();
-      }
-
-      cursor = db.query("thread", new String[] {"COUNT(*)"}, "snippet_type & " + 0x80000000 + " != 0",
-                        null, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        threadCount = cursor.getInt(0);
-        cursor.close();
-      }
+      RowMigration smsMigration = new KeyExchangePrefixMigration("sms_key_exchange_prefix", masterCipher,
+                                                                 "sms", "body", "type");
+      RowMigration threadMigration = new KeyExchangePrefixMigration("thread_key_exchange_prefix", masterCipher,
+                                                                    "thread", "snippet", "snippet_type");
 
-      Cursor smsCursor = null;
+      int smsCount    = smsMigration.getRemainingCount(context, db);
+      int threadCount = threadMigration.getRemainingCount(context, db);
 
       Log.w("DatabaseFactory", "Upgrade count: " + (smsCount + threadCount));
 
-      do {
-        Log.w("DatabaseFactory", "Looping SMS cursor...");
-        if (smsCursor != null)
-          smsCursor.close();
-
-        smsCursor = db.query("sms", new String[] {"_id", "type", "body"},
-                             "type & " + 0x80000000 + " != 0",
-                             null, null, null, "_id", skip + "," + ROW_LIMIT);
-
-        while (smsCursor != null && smsCursor.moveToNext()) {
-          listener.setProgress(smsCursor.getPosition() + skip, smsCount + threadCount);
-
-          try {
-            String body = masterCipher.decryptBody(smsCursor.getString(smsCursor.getColumnIndexOrThrow("body")));
-            long type   = smsCursor.getLong(smsCursor.getColumnIndexOrThrow("type"));
-            long id     = smsCursor.getLong(smsCursor.getColumnIndexOrThrow("_id"));
-
-            if (body.startsWith(KEY_EXCHANGE)) {
-              body  = body.substring(KEY_EXCHANGE.length());
-              body  = masterCipher.encryptBody(body);
-              type |= 0x8000;
-
-              db.execSQL("UPDATE sms SET body = ?, type = ? WHERE _id = ?",
-                         new String[] {body, type+"", id+""});
-            } else if (body.startsWith(PROCESSED_KEY_EXCHANGE)) {
-              body  = body.substring(PROCESSED_KEY_EXCHANGE.length());
-              body  = masterCipher.encryptBody(body);
-              type |= (0x8000 | 0x2000);
-
-              db.execSQL("UPDATE sms SET body = ?, type = ? WHERE _id = ?",
-                         new String[] {body, type+"", id+""});
-            } else if (body.startsWith(STALE_KEY_EXCHANGE)) {
-              body  = body.substring(STALE_KEY_EXCHANGE.length());
-              body  = masterCipher.encryptBody(body);
-              type |= (0x8000 | 0x4000);
-
-              db.execSQL("UPDATE sms SET body = ?, type = ? WHERE _id = ?",
-                         new String[] {body, type+"", id+""});
-            }
-          } catch (InvalidMessageException e) {
-            Log.w("DatabaseFactory", e);
-          }
-        }
-
-        skip += ROW_LIMIT;
-      } while (smsCursor != null && smsCursor.getCount() > 0);
-
-
-
-      Cursor threadCursor = null;
-      skip                = 0;
-
-      do {
-        Log.w("DatabaseFactory", "Looping thread cursor...");
-
-        if (threadCursor != null)
-          threadCursor.close();
-
-        threadCursor = db.query("thread", new String[] {"_id", "snippet_type", "snippet"},
-                                "snippet_type & " + 0x80000000 + " != 0",
-                                null, null, null, "_id", skip + "," + ROW_LIMIT);
-
-        while (threadCursor != null && threadCursor.moveToNext()) {
-          listener.setProgress(smsCount + threadCursor.getPosition(), smsCount + threadCount);
-
-          try {
-            String snippet   = threadCursor.getString(threadCursor.getColumnIndexOrThrow("snippet"));
-            long snippetType = threadCursor.getLong(threadCursor.getColumnIndexOrThrow("snippet_type"));
-            long id          = threadCursor.getLong(threadCursor.getColumnIndexOrThrow("_id"));
-
-            if (!Util.isEmpty(snippet)) {
-              snippet = masterCipher.decryptBody(snippet);
-            }
-
-            if (snippet.startsWith(KEY_EXCHANGE)) {
-              snippet      = snippet.substring(KEY_EXCHANGE.length());
-              snippet      = masterCipher.encryptBody(snippet);
-              snippetType |= 0x8000;
-
-              db.execSQL("UPDATE thread SET snippet = ?, snippet_type = ? WHERE _id = ?",
-                         new String[] {snippet, snippetType+"", id+""});
-            } else if (snippet.startsWith(PROCESSED_KEY_EXCHANGE)) {
-              snippet      = snippet.substring(PROCESSED_KEY_EXCHANGE.length());
-              snippet      = masterCipher.encryptBody(snippet);
-              snippetType |= (0x8000 | 0x2000);
-
-              db.execSQL("UPDATE thread SET snippet = ?, snippet_type = ? WHERE _id = ?",
-                         new String[] {snippet, snippetType+"", id+""});
-            } else if (snippet.startsWith(STALE_KEY_EXCHANGE)) {
-              snippet      = snippet.substring(STALE_KEY_EXCHANGE.length());
-              snippet      = masterCipher.encryptBody(snippet);
-              snippetType |= (0x8000 | 0x4000);
-
-              db.execSQL("UPDATE thread SET snippet = ?, snippet_type = ? WHERE _id = ?",
-                         new String[] {snippet, snippetType+"", id+""});
-            }
-          } catch (InvalidMessageException e) {
-            Log.w("DatabaseFactory", e);
-          }
-        }
-
-        skip += ROW_LIMIT;
-      } while (threadCursor != null && threadCursor.getCount() > 0);
-
-      if (smsCursor != null)
-        smsCursor.close();
-
-      if (threadCursor != null)
-        threadCursor.close();
+      smsMigration.run(context, db, listener, 0, smsCount + threadCount);
+      threadMigration.run(context, db, listener, smsCount, smsCount + threadCount);
     }
 
+    db.beginTransaction();
+
     if (fromVersion < DatabaseUpgradeActivity.MMS_BODY_VERSION) {
       Log.w("DatabaseFactory", "Update MMS bodies...");
       MasterCipher masterCipher = new MasterCipher(masterSecret);
@@ -362,42 +238,90 @@ public class DatabaseFactory {
     }
 
     if (fromVersion < DatabaseUpgradeActivity.TOFU_IDENTITIES_VERSION) {
-      File sessionDirectory = new File(context.getFilesDir() + File.separator + "sessions");
-
-      if (sessionDirectory.exists() && sessionDirectory.isDirectory()) {
-        File[] sessions = sessionDirectory.listFiles();
-
-        if (sessions != null) {
-          for (File session : sessions) {
-            String name = session.getName();
-
-            if (name.matches("[0-9]+")) {
-              long recipientId            = Long.parseLong(name);
-              SessionRecord sessionRecord = new SessionRecord(context, masterSecret, recipientId);
-              IdentityKey identityKey     = sessionRecord.getIdentityKey();
-
-              if (identityKey != null) {
-                MasterCipher masterCipher = new MasterCipher(masterSecret);
-                String identityKeyString  = Base64.encodeBytes(identityKey.serialize());
-                String macString          = Base64.encodeBytes(masterCipher.getMacFor(recipientId +
-                                                                                      identityKeyString));
-
-                db.execSQL("REPLACE INTO identities (recipient, key, mac) VALUES (?, ?, ?)",
-                           new String[] {recipientId+"", identityKeyString, macString});
-              }
-            }
+      try {
+        for (long recipientId : SessionRecord.getRecipientIds(context)) {
+          SessionRecord sessionRecord = new SessionRecord(context, masterSecret, recipientId);
+          IdentityKey identityKey     = sessionRecord.getIdentityKey();
+
+          if (identityKey != null) {
+            MasterCipher masterCipher = new MasterCipher(masterSecret);
+            String identityKeyString  = Base64.encodeBytes(identityKey.serialize());
+            String macString          = Base64.encodeBytes(masterCipher.getMacFor(recipientId +
+                                                                                  identityKeyString));
+
+            db.execSQL("REPLACE INTO identities (recipient, key, mac) VALUES (?, ?, ?)",
+                       new String[] {recipientId+"", identityKeyString, macString});
           }
         }
+      } catch (IOException ioe) {
+        Log.w("DatabaseFactory", ioe);
       }
     }
 
     db.setTransactionSuccessful();
     db.endTransaction();
 
+    RowMigration.clearCheckpoints(context);
+
     DecryptingQueue.schedulePendingDecrypts(context, masterSecret);
     MessageNotifier.updateNotification(context, masterSecret);
   }
 
+  /**
+   * Moves the key exchange markers that used to prefix encrypted bodies
+   * into the type bits.  Rows already rewritten no longer start with a
+   * marker, so re-running over them changes nothing.
+   */
+  private static class KeyExchangePrefixMigration extends RowMigration {
+
+    private static final String KEY_EXCHANGE           = "?TextSecureKeyExchange";
+    private static final String PROCESSED_KEY_EXCHANGE = "?TextSecureKeyExchangd";
+    private static final String STALE_KEY_EXCHANGE     = "?TextSecureKeyExchangs";
+
+    private final MasterCipher masterCipher;
+
+    public KeyExchangePrefixMigration(String name, MasterCipher masterCipher,
+                                      String table, String bodyColumn, String typeColumn)
+    {
+      super(name, table, new String[] {bodyColumn, typeColumn},
+            typeColumn + " & " + 0x80000000 + " != 0",
+            "UPDATE " + table + " SET " + bodyColumn + " = ?, " + typeColumn + " = ? WHERE _id = ?");
+
+      this.masterCipher = masterCipher;
+    }
+
+    @Override
+    protected String[] migrate(String[] row) {
+      String body = row[1];
+      long   type = Long.parseLong(row[2]);
+
+      if (Util.isEmpty(body))
+        return null;
+
+      try {
+        body = masterCipher.decryptBody(body);
+      } catch (InvalidMessageException e) {
+        Log.w("DatabaseFactory", e);
+        return null;
+      }
+
+      if (body.startsWith(KEY_EXCHANGE)) {
+        body  = body.substring(KEY_EXCHANGE.length());
+        type |= 0x8000;
+      } else if (body.startsWith(PROCESSED_KEY_EXCHANGE)) {
+        body  = body.substring(PROCESSED_KEY_EXCHANGE.length());
+        type |= (0x8000 | 0x2000);
+      } else if (body.startsWith(STALE_KEY_EXCHANGE)) {
+        body  = body.substring(STALE_KEY_EXCHANGE.length());
+        type |= (0x8000 | 0x4000);
+      } else {
+        return null;
+      }
+
+      return new String[] {masterCipher.encryptBody(body), type+""};
+    }
+  }
+
   private static class DatabaseHelper extends SQLiteOpenHelper {
 
     public DatabaseHelper(Context context, String name, CursorFactory factory, int version) {
@@ -605,6 +529,13 @@ public class DatabaseFactory {
         db.execSQL("CREATE TABLE identities (_id INTEGER PRIMARY KEY, recipient INTEGER UNIQUE, key TEXT, mac TEXT);");
       }
 
+      if (oldVersion < INTRODUCED_THREAD_DATE_VERSION) {
+        executeStatements(db, new String[] {
+            "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON sms (thread_id, date);",
+            "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON mms (thread_id, date_received);"
+        });
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
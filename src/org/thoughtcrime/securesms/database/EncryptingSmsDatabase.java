@@ -30,16 +30,12 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.InvalidMessageException;
-import org.thoughtcrime.securesms.util.LRUCache;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -52,33 +48,41 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
     MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
-
-    return ciphertext;
+    return bodyCipher.encryptBody(body);
   }
 
   public List<Long> insertMessageOutbox(MasterSecret masterSecret, long threadId,
                                         OutgoingTextMessage message)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
-    message   = message.withBody(getEncryptedBody(masterSecret, message.getMessageBody()));
-    type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
+    long type        = Types.BASE_OUTBOX_TYPE;
+    String plaintext = message.getMessageBody();
+    message          = message.withBody(getEncryptedBody(masterSecret, plaintext));
+    type            |= Types.ENCRYPTION_SYMMETRIC_BIT;
+
+    List<Long> messageIds = insertMessageOutbox(threadId, message, type);
 
-    return insertMessageOutbox(threadId, message, type);
+    for (long messageId : messageIds)
+      plaintextCache.put(PlaintextCache.SMS, messageId, message.getMessageBody(), plaintext);
+
+    return messageIds;
   }
 
   public Pair<Long, Long> insertMessageInbox(MasterSecret masterSecret,
                                              IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE;
+    long type        = Types.BASE_INBOX_TYPE;
+    String plaintext = null;
 
     if (!message.isSecureMessage()) {
-      type |= Types.ENCRYPTION_SYMMETRIC_BIT;
-      message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+      type     |= Types.ENCRYPTION_SYMMETRIC_BIT;
+      plaintext = message.getMessageBody();
+      message   = message.withMessageBody(getEncryptedBody(masterSecret, plaintext));
     }
 
-    return insertMessageInbox(message, type);
+    Pair<Long, Long> messageAndThreadId = insertMessageInbox(message, type);
+    plaintextCache.put(PlaintextCache.SMS, messageAndThreadId.first, message.getMessageBody(), plaintext);
+
+    return messageAndThreadId;
   }
 
   public Pair<Long, Long> insertMessageInbox(AsymmetricMasterSecret masterSecret,
@@ -100,6 +104,7 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     String encryptedBody = getEncryptedBody(masterSecret, body);
     updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK,
                              Types.ENCRYPTION_SYMMETRIC_BIT);
+    plaintextCache.put(PlaintextCache.SMS, messageId, encryptedBody, body);
   }
 
   public Reader getOutgoingMessages(MasterSecret masterSecret) {
@@ -132,19 +137,20 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
     @Override
     protected DisplayRecord.Body getBody(Cursor cursor) {
+      long messageId    = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
       long type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
       String ciphertext = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          String plaintext = plaintextCache.get(PlaintextCache.SMS, messageId, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
           plaintext = masterCipher.decryptBody(ciphertext);
 
-          plaintextCache.put(ciphertext, plaintext);
+          plaintextCache.put(PlaintextCache.SMS, messageId, ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -155,28 +161,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
@@ -120,7 +120,8 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     "CREATE INDEX IF NOT EXISTS mms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS mms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS mms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
-    "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");"
+    "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
+    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -177,6 +178,25 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     }
   }
 
+  private long getDateReceivedForMessage(long id) {
+    String sql        = "SELECT " + DATE_RECEIVED + " * 1000 FROM " + TABLE_NAME + " WHERE " + ID + " = ?";
+    String[] sqlArgs  = new String[] {id+""};
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    Cursor cursor = null;
+
+    try {
+      cursor = db.rawQuery(sql, sqlArgs);
+      if (cursor != null && cursor.moveToFirst())
+        return cursor.getLong(0);
+      else
+        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   private long getThreadIdFor(RetrieveConf retrieved) throws RecipientFormattingException {
     try {
       Set<String> group = new HashSet<String>();
@@ -367,7 +387,6 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     long messageId = insertMediaMessage(masterSecret, retrieved, contentValues);
 
     DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     Trimmer.trimThread(context, threadId);
 
@@ -489,14 +508,26 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     addressDatabase.insertAddressesForId(messageId, message.getPduHeaders());
     partsDatabase.insertParts(messageId, body);
 
-    notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-    DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID));
+    long threadId     = contentValues.getAsLong(THREAD_ID);
+    Long dateReceived = contentValues.getAsLong(DATE_RECEIVED);
+    String snippet    = contentValues.getAsString(BODY);
+
+    notifyConversationListeners(threadId);
+
+    if (dateReceived == null) {
+      DatabaseFactory.getThreadDatabase(context).update(threadId);
+    } else {
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, snippet == null ? "" : snippet,
+                                                                 dateReceived * 1000,
+                                                                 contentValues.getAsLong(MESSAGE_BOX));
+    }
 
     return messageId;
   }
 
   public void delete(long messageId) {
     long threadId                   = getThreadIdForMessage(messageId);
+    long date                       = getDateReceivedForMessage(messageId);
     MmsAddressDatabase addrDatabase = DatabaseFactory.getMmsAddressDatabase(context);
     PartDatabase partDatabase       = DatabaseFactory.getPartDatabase(context);
     partDatabase.deleteParts(messageId);
@@ -504,7 +535,8 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.MMS, messageId);
+    DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, date);
     notifyConversationListeners(threadId);
   }
 
@@ -543,7 +575,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
     Cursor cursor = null;
 
     try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
+      SQLiteDatabase db = databaseHelper.getWritableDatabase();
       String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
 
       for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
@@ -555,11 +587,20 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
       Log.w("MmsDatabase", "Executing trim query: " + where);
       cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
 
+      PartDatabase partDatabase       = DatabaseFactory.getPartDatabase(context);
+      MmsAddressDatabase addrDatabase = DatabaseFactory.getMmsAddressDatabase(context);
+
       while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
+        long messageId = cursor.getLong(0);
+
+        Log.w("MmsDatabase", "Trimming: " + messageId);
+        partDatabase.deleteParts(messageId);
+        addrDatabase.deleteAddressesForId(messageId);
+        PlaintextCache.getInstance().invalidate(PlaintextCache.MMS, messageId);
       }
 
+      // The caller recomputes the thread's summary once all its trimmed rows are gone.
+      db.delete(TABLE_NAME, where, new String[] {threadId+""});
     } finally {
       if (cursor != null)
         cursor.close();
@@ -573,6 +614,7 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.MMS);
   }
 
   public Cursor getCarrierMmsInformation(String apn) {
@@ -800,11 +842,19 @@ public class MmsDatabase extends Database implements MmsSmsColumns {
 
     private DisplayRecord.Body getBody(Cursor cursor) {
       try {
+        long id     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
         String body = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
         if (!Util.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          String plaintext = PlaintextCache.getInstance().get(PlaintextCache.MMS, id, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            PlaintextCache.getInstance().put(PlaintextCache.MMS, id, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!Util.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else {
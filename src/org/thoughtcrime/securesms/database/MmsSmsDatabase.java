@@ -25,9 +25,14 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.util.Util;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MmsSmsDatabase extends Database {
 
@@ -35,66 +40,132 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final String[] PROJECTION = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
+                                              MmsSmsColumns.THREAD_ID,
+                                              SmsDatabase.ADDRESS, SmsDatabase.SUBJECT,
+                                              MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+                                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
+                                              MmsDatabase.STATUS, TRANSPORT};
+
+  private static final String[] MMS_PROJECTION = {MmsDatabase.DATE_SENT + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                                  MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                                  MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
+                                                  SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
+                                                  MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                                                  MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                                  MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
+                                                  TRANSPORT};
+
+  // The received date is selected bare, so that (thread_id, date) can order the SMS rows.
+  private static final String[] SMS_PROJECTION = {SmsDatabase.DATE_SENT + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
+                                                  SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+                                                  MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
+                                                  SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
+                                                  MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
+                                                  MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
+                                                  MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
+                                                  TRANSPORT};
+
+  private static final Set<String> MMS_COLUMNS_PRESENT = new HashSet<String>(Arrays.asList(
+      MmsSmsColumns.ID, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID, MmsSmsColumns.BODY,
+      MmsSmsColumns.ADDRESS, MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
+      MmsDatabase.DATE_SENT, MmsDatabase.DATE_RECEIVED, MmsDatabase.PART_COUNT,
+      MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID, MmsDatabase.MESSAGE_SIZE,
+      MmsDatabase.EXPIRY, MmsDatabase.STATUS));
+
+  private static final Set<String> SMS_COLUMNS_PRESENT = new HashSet<String>(Arrays.asList(
+      MmsSmsColumns.ID, MmsSmsColumns.BODY, MmsSmsColumns.ADDRESS, MmsSmsColumns.READ,
+      MmsSmsColumns.THREAD_ID, SmsDatabase.TYPE, SmsDatabase.SUBJECT, SmsDatabase.DATE_SENT,
+      SmsDatabase.DATE_RECEIVED, SmsDatabase.STATUS));
+
+  private static final Map<String, String> queryCache = new ConcurrentHashMap<String, String>();
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public Cursor getConversation(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    Cursor cursor = queryTables(projection, selection, order, null, null);
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
+
+    Cursor cursor = queryTables(selection, new String[] {threadId+""}, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
+  /**
+   * Loads the window of a conversation received at or after
+   * <code>windowStart</code>, which the (thread_id, date) indexes serve as a
+   * range scan no matter how long the thread is.
+   *
+   * @see #getConversationCutoffDate(long, long, int)
+   */
+  public Cursor getConversation(long threadId, long windowStart) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_RECEIVED + " >= ?";
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_RECEIVED + " >= ?";
+
+    Cursor cursor = queryTables(smsSelection, new String[] {threadId+"", windowStart+""},
+                                mmsSelection, new String[] {threadId+"", getMmsDateBound(windowStart)+""},
+                                order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * @return The normalized received date of the <code>count</code>th newest
+   * message in the thread received before <code>before</code>, or -1 if
+   * there are no more than <code>count</code> such messages.
+   */
+  public long getConversationCutoffDate(long threadId, long before, int count) {
+    if (count <= 0)
+      return -1;
+
+    String dates = "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                   " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                   " AND " + SmsDatabase.DATE_RECEIVED + " < ?" +
+                   " UNION ALL " +
+                   "SELECT " + MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                   " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                   " AND " + MmsDatabase.DATE_RECEIVED + " < ?";
+
+    String query = "SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM (" + dates + ")" +
+                   " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC" +
+                   " LIMIT 1 OFFSET " + (count - 1);
+
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.rawQuery(query, new String[] {threadId+"", before+"",
+                                                threadId+"", getMmsDateBound(before)+""});
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return -1;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public Cursor getConversationSnippet(long threadId) {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.TYPE,
-                              MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.ADDRESS, SmsDatabase.SUBJECT,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    return  queryTables(projection, selection, order, null, "1");
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String selection = MmsSmsColumns.THREAD_ID + " = ?";
+
+    return queryTables(selection, new String[] {threadId+""}, order, "1");
   }
 
   public Cursor getUnread() {
-    String[] projection    = {MmsSmsColumns.ID, SmsDatabase.BODY, SmsDatabase.READ, SmsDatabase.TYPE,
-                              SmsDatabase.ADDRESS, SmsDatabase.SUBJECT, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.STATUS,
-                              MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsDatabase.MESSAGE_TYPE, MmsDatabase.MESSAGE_BOX,
-                              MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY,
-                              MmsDatabase.STATUS, TRANSPORT};
-
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.READ + " = 0";
-
-    return queryTables(projection, selection, order, null, null);
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.READ + " = 0";
+
+    return queryTables(selection, null, order, null);
   }
 
   public int getConversationCount(long threadId) {
@@ -104,78 +175,111 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
-  private Cursor queryTables(String[] projection, String selection, String order, String groupBy, String limit) {
-    String[] mmsProjection = {MmsDatabase.DATE_SENT + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              MmsDatabase.DATE_RECEIVED + " * 1000 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              TRANSPORT};
-
-    String[] smsProjection = {SmsDatabase.DATE_SENT + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
-                              SmsDatabase.DATE_RECEIVED + " * 1 AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
-                              MmsSmsColumns.ID, SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
-                              SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
-                              MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
-                              MmsDatabase.CONTENT_LOCATION, MmsDatabase.TRANSACTION_ID,
-                              MmsDatabase.MESSAGE_SIZE, MmsDatabase.EXPIRY, MmsDatabase.STATUS,
-                              TRANSPORT};
+  /**
+   * MMS dates are stored in seconds.  Selection arguments are bound as text,
+   * which SQLite only converts when they're compared against a bare INTEGER
+   * column, so bounds on an MMS date are converted to seconds here rather
+   * than comparing against <code>date * 1000</code>.
+   *
+   * @return The smallest MMS date, in seconds, that is at or after
+   * <code>millis</code>.
+   */
+  private static long getMmsDateBound(long millis) {
+    long seconds = millis / 1000;
+    return (millis % 1000 > 0) ? seconds + 1 : seconds;
+  }
+
+  /**
+   * Runs a selection against both message tables.  The arguments are bound
+   * once for each table.
+   */
+  private Cursor queryTables(String selection, String[] selectionArgs, String order, String limit) {
+    return queryTables(selection, selectionArgs, selection, selectionArgs, order, limit);
+  }
 
+  private Cursor queryTables(String smsSelection, String[] smsSelectionArgs,
+                             String mmsSelection, String[] mmsSelectionArgs,
+                             String order, String limit)
+  {
+    String   query = getUnionQuery(smsSelection, mmsSelection, order, limit);
+    String[] args  = null;
+
+    if (smsSelectionArgs != null) {
+      args = new String[smsSelectionArgs.length + mmsSelectionArgs.length];
+      System.arraycopy(smsSelectionArgs, 0, args, 0, smsSelectionArgs.length);
+      System.arraycopy(mmsSelectionArgs, 0, args, smsSelectionArgs.length, mmsSelectionArgs.length);
+    }
+
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, args);
+  }
+
+  /**
+   * Builds the query for a selection the first time it's used.  The union
+   * is UNION ALL without DISTINCT, since rows from the two tables can never
+   * collide, which leaves SQLite free to merge the two ordered halves
+   * instead of sorting and de-duplicating the whole result.
+   */
+  private String getUnionQuery(String smsSelection, String mmsSelection, String order, String limit) {
+    String key   = smsSelection + "|" + mmsSelection + "|" + order + "|" + limit;
+    String query = queryCache.get(key);
+
+    if (query != null)
+      return query;
 
     SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
     SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
-
     mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
 
-    Set<String> mmsColumnsPresent = new HashSet<String>();
-    mmsColumnsPresent.add(MmsSmsColumns.ID);
-    mmsColumnsPresent.add(MmsSmsColumns.READ);
-    mmsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    mmsColumnsPresent.add(MmsSmsColumns.BODY);
-    mmsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_TYPE);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_BOX);
-    mmsColumnsPresent.add(MmsDatabase.DATE_SENT);
-    mmsColumnsPresent.add(MmsDatabase.DATE_RECEIVED);
-    mmsColumnsPresent.add(MmsDatabase.PART_COUNT);
-    mmsColumnsPresent.add(MmsDatabase.CONTENT_LOCATION);
-    mmsColumnsPresent.add(MmsDatabase.TRANSACTION_ID);
-    mmsColumnsPresent.add(MmsDatabase.MESSAGE_SIZE);
-    mmsColumnsPresent.add(MmsDatabase.EXPIRY);
-    mmsColumnsPresent.add(MmsDatabase.STATUS);
-
-    Set<String> smsColumnsPresent = new HashSet<String>();
-    smsColumnsPresent.add(MmsSmsColumns.ID);
-    smsColumnsPresent.add(MmsSmsColumns.BODY);
-    smsColumnsPresent.add(MmsSmsColumns.ADDRESS);
-    smsColumnsPresent.add(MmsSmsColumns.READ);
-    smsColumnsPresent.add(MmsSmsColumns.THREAD_ID);
-    smsColumnsPresent.add(SmsDatabase.TYPE);
-    smsColumnsPresent.add(SmsDatabase.SUBJECT);
-    smsColumnsPresent.add(SmsDatabase.DATE_SENT);
-    smsColumnsPresent.add(SmsDatabase.DATE_RECEIVED);
-    smsColumnsPresent.add(SmsDatabase.STATUS);
-
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 2, MMS_TRANSPORT, selection, null, null, null);
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 2, SMS_TRANSPORT, selection, null, null, null);
-
-    SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
-    String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, MMS_PROJECTION, MMS_COLUMNS_PRESENT, 2, MMS_TRANSPORT, mmsSelection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, SMS_PROJECTION, SMS_COLUMNS_PRESENT, 2, SMS_TRANSPORT, smsSelection, null, null, null);
+    String unionQuery  = smsSubQuery + " UNION ALL " + mmsSubQuery + " ORDER BY " + order;
 
     SQLiteQueryBuilder outerQueryBuilder = new SQLiteQueryBuilder();
     outerQueryBuilder.setTables("(" + unionQuery + ")");
 
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, groupBy, null, null, limit);
+    query = outerQueryBuilder.buildQuery(PROJECTION, null, null, null, null, null, limit);
 
-    Log.w("MmsSmsDatabase", "Executing query: " + query);
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    Log.w("MmsSmsDatabase", "Built query: " + query);
+    queryCache.put(key, query);
+
+    return query;
+  }
+
+  /**
+   * Queues the encrypted bodies of up to <code>count</code> conversation rows
+   * starting at <code>position</code> for background decryption.  The
+   * cursor's position is left unchanged.
+   */
+  public void prefetchBodies(MasterSecret masterSecret, Cursor cursor, int position, int count) {
+    if (masterSecret == null || cursor == null) return;
+
+    Map<Long, String> smsCiphertexts = new LinkedHashMap<Long, String>();
+    Map<Long, String> mmsCiphertexts = new LinkedHashMap<Long, String>();
+    int originalPosition             = cursor.getPosition();
+
+    for (int i=Math.max(0, position);i<position+count && cursor.moveToPosition(i);i++) {
+      String transport = cursor.getString(cursor.getColumnIndexOrThrow(TRANSPORT));
+      long id          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+      String body      = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.BODY));
+
+      if (Util.isEmpty(body))
+        continue;
+
+      if (MMS_TRANSPORT.equals(transport)) {
+        if (MmsSmsColumns.Types.isSymmetricEncryption(cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX))))
+          mmsCiphertexts.put(id, body);
+      } else {
+        if (MmsSmsColumns.Types.isSymmetricEncryption(cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE))))
+          smsCiphertexts.put(id, body);
+      }
+    }
+
+    cursor.moveToPosition(originalPosition);
+    PlaintextCache.getInstance().prefetch(masterSecret, PlaintextCache.SMS, smsCiphertexts);
+    PlaintextCache.getInstance().prefetch(masterSecret, PlaintextCache.MMS, mmsCiphertexts);
   }
 
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
@@ -27,13 +27,19 @@ import android.util.Log;
 import org.thoughtcrime.securesms.providers.PartProvider;
 import org.thoughtcrime.securesms.util.Util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.MmsException;
@@ -69,6 +75,9 @@ public class PartDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");"
   };
 
+  private static final ExecutorService partReader =
+      Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+
   public PartDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -169,17 +178,8 @@ public class PartDatabase extends Database {
 
   private void readPartData(PduPart part, String filename) {
     try {
-      File dataFile              = new File(filename);
-      FileInputStream fin        = getPartInputStream(dataFile, part);
-      ByteArrayOutputStream baos = new ByteArrayOutputStream((int)dataFile.length());
-      byte[] buffer              = new byte[512];
-      int read;
-
-      while ((read = fin.read(buffer)) != -1)
-        baos.write(buffer, 0, read);
-
-      part.setData(baos.toByteArray());
-      fin.close();
+      File dataFile = new File(filename);
+      part.setData(Util.readBytes(getPartInputStream(dataFile, part), dataFile.length()));
     } catch (IOException ioe) {
       Log.w("PartDatabase", ioe);
       part.setData(null);
@@ -199,11 +199,8 @@ public class PartDatabase extends Database {
         return dataFile;
       } else if (part.getDataUri() != null) {
         Log.w("PartDatabase", "Writing part dat from URI");
-        byte[] buf     = new byte[512];
         InputStream in = context.getContentResolver().openInputStream(part.getDataUri());
-        int read;
-        while ((read = in.read(buf)) != -1)
-          fout.write(buf, 0, read);
+        Util.copy(in, fout);
 
         fout.close();
         in.close();
@@ -219,18 +216,59 @@ public class PartDatabase extends Database {
   }
 
   private PduPart getPart(Cursor cursor, boolean includeData) {
-    PduPart part        = new PduPart();
-    String dataLocation = cursor.getString(cursor.getColumnIndexOrThrow(DATA));
-    long partId         = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+    PduPart part = getPartWithoutData(cursor);
 
-    getPartValues(part, cursor);
     if (includeData)
-      readPartData(part, dataLocation);
+      readPartData(part, cursor.getString(cursor.getColumnIndexOrThrow(DATA)));
+
+    return part;
+  }
+
+  private PduPart getPartWithoutData(Cursor cursor) {
+    PduPart part = new PduPart();
+    long partId  = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+
+    getPartValues(part, cursor);
     part.setDataUri(ContentUris.withAppendedId(PartProvider.CONTENT_URI, partId));
 
     return part;
   }
 
+  /**
+   * Reads the data of a message's parts concurrently, since each part is
+   * its own file and, when encrypted, is decrypted independently.
+   */
+  private void readPartData(List<PduPart> parts, List<String> dataLocations) {
+    if (parts.size() == 1) {
+      readPartData(parts.get(0), dataLocations.get(0));
+      return;
+    }
+
+    List<Future<?>> reads = new ArrayList<Future<?>>(parts.size());
+
+    for (int i=0;i<parts.size();i++) {
+      final PduPart part        = parts.get(i);
+      final String dataLocation  = dataLocations.get(i);
+
+      reads.add(partReader.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          readPartData(part, dataLocation);
+          return null;
+        }
+      }));
+    }
+
+    try {
+      for (Future<?> read : reads)
+        read.get();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   private long insertPart(PduPart part, long mmsId) throws MmsException {
     SQLiteDatabase database     = databaseHelper.getWritableDatabase();
     File dataFile               = writePartData(part);
@@ -291,23 +329,31 @@ public class PartDatabase extends Database {
   }
 
   public PduBody getParts(long mmsId, boolean includeData) {
-    SQLiteDatabase database = databaseHelper.getReadableDatabase();
-    PduBody body            = new PduBody();
-    Cursor cursor           = null;
+    SQLiteDatabase database    = databaseHelper.getReadableDatabase();
+    PduBody body               = new PduBody();
+    List<PduPart> parts        = new ArrayList<PduPart>();
+    List<String> dataLocations = new ArrayList<String>();
+    Cursor cursor              = null;
 
     try {
       cursor = database.query(TABLE_NAME, null, MMS_ID + " = ?", new String[] {mmsId+""}, null, null, null);
 
       while (cursor != null && cursor.moveToNext()) {
-        PduPart part = getPart(cursor, includeData);
+        PduPart part = getPartWithoutData(cursor);
+
+        parts.add(part);
+        dataLocations.add(cursor.getString(cursor.getColumnIndexOrThrow(DATA)));
         body.addPart(part);
       }
-
-      return body;
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    if (includeData && !parts.isEmpty())
+      readPartData(parts, dataLocations);
+
+    return body;
   }
 
   public void deleteParts(long mmsId) {
@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2013 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide cache of decrypted message bodies and thread snippets,
+ * keyed by (table, row id).
+ *
+ * The cache is split into independently locked LRU segments, each with a
+ * share of a fixed byte budget, so lookups from different threads rarely
+ * contend and memory use doesn't depend on the garbage collector.
+ *
+ * Each entry remembers the ciphertext it was decrypted from, and a lookup
+ * only hits if the caller's ciphertext matches.  A row whose body has been
+ * rewritten (or whose id has been reused) therefore never returns stale
+ * plaintext, even if a reader holding an older cursor puts it back after
+ * the writer's invalidate.  Writers still invalidate to free the memory.
+ * Everything is dropped when the MasterSecret is cleared.
+ *
+ * Readers can also hand it a window of rows they are about to display,
+ * which are then decrypted on a small background pool so that binding a
+ * row in the UI is usually a cache hit.
+ */
+public class PlaintextCache {
+
+  public static final int SMS    = 1;
+  public static final int MMS    = 2;
+  public static final int THREAD = 3;
+
+  private static final int  SEGMENT_COUNT    = 8;
+  private static final long MAX_CACHE_BYTES  = Math.min(Runtime.getRuntime().maxMemory() / 32, 2 * 1024 * 1024);
+  private static final int  ENTRY_OVERHEAD   = 64;
+  private static final int  PREFETCH_THREADS = 2;
+
+  private static final PlaintextCache instance = new PlaintextCache();
+
+  private final Segment[]  segments      = new Segment[SEGMENT_COUNT];
+  private final AtomicLong hits          = new AtomicLong(0);
+  private final AtomicLong misses        = new AtomicLong(0);
+
+  // Bumped by clear(), so that a prefetch already decrypting can't put
+  // its results back afterwards.
+  private final AtomicInteger generation = new AtomicInteger(0);
+
+  private final ThreadPoolExecutor prefetchExecutor =
+      new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0L, TimeUnit.MILLISECONDS,
+                             new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+  {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "PlaintextCache-Prefetch");
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    }
+  });
+
+  public static PlaintextCache getInstance() {
+    return instance;
+  }
+
+  private PlaintextCache() {
+    for (int i=0;i<segments.length;i++)
+      segments[i] = new Segment(MAX_CACHE_BYTES / SEGMENT_COUNT);
+  }
+
+  public void put(int table, long id, String ciphertext, String plaintext) {
+    if (ciphertext == null || plaintext == null) return;
+
+    long key = getKey(table, id);
+    getSegment(key).put(key, new Entry(ciphertext, plaintext), -1);
+  }
+
+  /**
+   * Drops every cached plaintext and any prefetches that haven't finished,
+   * for when the MasterSecret is cleared.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    prefetchExecutor.getQueue().clear();
+
+    for (Segment segment : segments)
+      segment.clear();
+  }
+
+  /**
+   * @return The plaintext of the row, if it's cached and was decrypted from
+   * <code>ciphertext</code>.
+   */
+  public String get(int table, long id, String ciphertext) {
+    long   key       = getKey(table, id);
+    String plaintext = getSegment(key).get(key, ciphertext);
+
+    if (plaintext == null) misses.incrementAndGet();
+    else                   hits.incrementAndGet();
+
+    return plaintext;
+  }
+
+  public void invalidate(int table, long id) {
+    long key = getKey(table, id);
+    getSegment(key).remove(key);
+  }
+
+  public void invalidate(int table) {
+    for (Segment segment : segments)
+      segment.removeTable(table);
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getSizeInBytes() {
+    long size = 0;
+
+    for (Segment segment : segments)
+      size += segment.getSize();
+
+    return size;
+  }
+
+  /**
+   * Asynchronously decrypts any of the given symmetrically encrypted rows
+   * that aren't already cached.
+   *
+   * @param ciphertexts A map of row id to encrypted body.
+   */
+  public void prefetch(MasterSecret masterSecret, final int table, Map<Long, String> ciphertexts) {
+    final List<Long>   missingIds         = new ArrayList<Long>();
+    final List<String> missingCiphertexts = new ArrayList<String>();
+
+    for (Map.Entry<Long, String> entry : ciphertexts.entrySet()) {
+      long key = getKey(table, entry.getKey());
+
+      if (getSegment(key).get(key, entry.getValue()) == null) {
+        missingIds.add(entry.getKey());
+        missingCiphertexts.add(entry.getValue());
+      }
+    }
+
+    if (missingIds.isEmpty())
+      return;
+
+    final MasterCipher masterCipher       = new MasterCipher(masterSecret);
+    final int          prefetchGeneration = generation.get();
+    int chunkSize                   = (missingIds.size() + PREFETCH_THREADS - 1) / PREFETCH_THREADS;
+
+    for (int i=0;i<missingIds.size();i+=chunkSize) {
+      final int start = i;
+      final int end   = Math.min(i + chunkSize, missingIds.size());
+
+      prefetchExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          List<String> plaintexts = masterCipher.decryptBodies(missingCiphertexts.subList(start, end));
+
+          for (int j=0;j<plaintexts.size();j++) {
+            String plaintext = plaintexts.get(j);
+
+            if (plaintext == null)
+              continue;
+
+            long key = getKey(table, missingIds.get(start + j));
+            getSegment(key).put(key, new Entry(missingCiphertexts.get(start + j), plaintext), prefetchGeneration);
+          }
+        }
+      });
+    }
+
+    Log.w("PlaintextCache", "Prefetching " + missingIds.size() + " rows, hits: " + hits.get() +
+                            " misses: " + misses.get());
+  }
+
+  private static long getKey(int table, long id) {
+    return ((long)table << 56) | (id & 0x00FFFFFFFFFFFFFFL);
+  }
+
+  private static int getTable(long key) {
+    return (int)(key >>> 56);
+  }
+
+  private Segment getSegment(long key) {
+    int hash = (int)(key ^ (key >>> 32));
+    return segments[(hash & 0x7fffffff) % SEGMENT_COUNT];
+  }
+
+  private static class Entry {
+    private final String ciphertext;
+    private final String plaintext;
+
+    public Entry(String ciphertext, String plaintext) {
+      this.ciphertext = ciphertext;
+      this.plaintext  = plaintext;
+    }
+
+    public long getSize() {
+      return ENTRY_OVERHEAD + (ciphertext.length() + plaintext.length()) * 2;
+    }
+  }
+
+  private class Segment {
+    private final long maxSize;
+    private long size;
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    public Segment(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    public synchronized String get(long key, String ciphertext) {
+      Entry entry = entries.get(key);
+
+      if (entry != null && entry.ciphertext.equals(ciphertext)) return entry.plaintext;
+      else                                                       return null;
+    }
+
+    /**
+     * @param expectedGeneration The cache generation the entry was decrypted
+     * in, or -1 to put it regardless.
+     */
+    public synchronized void put(long key, Entry entry, int expectedGeneration) {
+      if (expectedGeneration != -1 && expectedGeneration != generation.get())
+        return;
+
+      Entry previous = entries.put(key, entry);
+
+      if (previous != null) size -= previous.getSize();
+      size += entry.getSize();
+
+      Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+
+      while (size > maxSize && iterator.hasNext()) {
+        Map.Entry<Long, Entry> eldest = iterator.next();
+        size -= eldest.getValue().getSize();
+        iterator.remove();
+      }
+    }
+
+    public synchronized void clear() {
+      entries.clear();
+      size = 0;
+    }
+
+    public synchronized void remove(long key) {
+      Entry previous = entries.remove(key);
+      if (previous != null) size -= previous.getSize();
+    }
+
+    public synchronized void removeTable(int table) {
+      Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        Map.Entry<Long, Entry> entry = iterator.next();
+
+        if (getTable(entry.getKey()) == table) {
+          size -= entry.getValue().getSize();
+          iterator.remove();
+        }
+      }
+    }
+
+    public synchronized long getSize() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2013 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.DatabaseUpgradeActivity.DatabaseUpgradeListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Rewrites the rows of one table that match a selection, for upgrades that
+ * have to decrypt and re-encrypt each row in code rather than in SQL.
+ *
+ * Rows are read in batches ordered by _id, each picking up after the last
+ * _id of the one before, so every batch is an index seek rather than an
+ * OFFSET scan.  A batch's rows are transformed in parallel, then written
+ * through one compiled UPDATE in a transaction of their own, after which
+ * the last _id is saved as a checkpoint.  If the process dies the upgrade
+ * resumes from the checkpoint, so a migration must be safe to re-apply to
+ * the rows of the batch that was in flight.
+ */
+abstract class RowMigration {
+
+  private static final String TAG               = "RowMigration";
+  private static final String PREFERENCES       = "SecureSMS";
+  private static final String CHECKPOINT_PREFIX = "upgrade_checkpoint_";
+  private static final int    BATCH_SIZE        = 500;
+  private static final int    WORKER_COUNT      = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  private final String   name;
+  private final String   table;
+  private final String[] columns;
+  private final String   selection;
+  private final String   update;
+
+  /**
+   * @param name A unique name for the migration's checkpoint.
+   * @param columns The columns handed to {@link #migrate(String[])}, after _id.
+   * @param update An UPDATE statement whose final argument is the row's _id.
+   */
+  public RowMigration(String name, String table, String[] columns, String selection, String update) {
+    this.name      = name;
+    this.table     = table;
+    this.selection = selection;
+    this.update    = update;
+    this.columns   = new String[columns.length + 1];
+
+    this.columns[0] = "_id";
+    System.arraycopy(columns, 0, this.columns, 1, columns.length);
+  }
+
+  /**
+   * @param row The row's _id, followed by the requested columns.
+   * @return The arguments for the UPDATE, excluding the trailing _id, or
+   * null to leave the row untouched.  Called concurrently.
+   */
+  protected abstract String[] migrate(String[] row);
+
+  /**
+   * @return The number of rows left to migrate.
+   */
+  public int getRemainingCount(Context context, SQLiteDatabase db) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(table, new String[] {"COUNT(*)"}, selection + " AND _id > ?",
+                        new String[] {getCheckpoint(context)+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * @return The number of rows examined.
+   */
+  public int run(Context context, SQLiteDatabase db, DatabaseUpgradeListener listener,
+                 int progress, int total)
+  {
+    ExecutorService executor  = Executors.newFixedThreadPool(WORKER_COUNT);
+    SQLiteStatement statement = db.compileStatement(update);
+    long            lastId    = getCheckpoint(context);
+    int             examined  = 0;
+
+    try {
+      for (;;) {
+        List<String[]> rows = getBatch(db, lastId);
+
+        if (rows.isEmpty())
+          break;
+
+        List<String[]> updates = migrateBatch(executor, rows);
+
+        db.beginTransaction();
+        try {
+          for (int i=0;i<rows.size();i++) {
+            String[] arguments = updates.get(i);
+
+            if (arguments == null)
+              continue;
+
+            statement.clearBindings();
+
+            for (int j=0;j<arguments.length;j++)
+              statement.bindString(j + 1, arguments[j]);
+
+            statement.bindLong(arguments.length + 1, Long.parseLong(rows.get(i)[0]));
+            statement.execute();
+          }
+
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
+
+        lastId    = Long.parseLong(rows.get(rows.size() - 1)[0]);
+        examined += rows.size();
+
+        setCheckpoint(context, lastId);
+        listener.setProgress(progress + examined, total);
+      }
+    } finally {
+      statement.close();
+      executor.shutdown();
+    }
+
+    Log.w(TAG, "Migration " + name + " examined " + examined + " rows.");
+    return examined;
+  }
+
+  /**
+   * Forgets every migration's checkpoint, once the upgrade that ran them
+   * has completed.
+   */
+  public static void clearCheckpoints(Context context) {
+    SharedPreferences        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    SharedPreferences.Editor editor      = preferences.edit();
+
+    for (String key : preferences.getAll().keySet()) {
+      if (key.startsWith(CHECKPOINT_PREFIX))
+        editor.remove(key);
+    }
+
+    editor.commit();
+  }
+
+  private List<String[]> getBatch(SQLiteDatabase db, long lastId) {
+    List<String[]> rows   = new ArrayList<String[]>(BATCH_SIZE);
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(table, columns, selection + " AND _id > ?", new String[] {lastId+""},
+                        null, null, "_id", BATCH_SIZE+"");
+
+      while (cursor != null && cursor.moveToNext()) {
+        String[] row = new String[columns.length];
+
+        for (int i=0;i<row.length;i++)
+          row[i] = cursor.getString(i);
+
+        rows.add(row);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return rows;
+  }
+
+  private List<String[]> migrateBatch(ExecutorService executor, final List<String[]> rows) {
+    int                          chunkSize = (rows.size() + WORKER_COUNT - 1) / WORKER_COUNT;
+    List<Future<List<String[]>>> chunks    = new ArrayList<Future<List<String[]>>>(WORKER_COUNT);
+    List<String[]>               updates   = new ArrayList<String[]>(rows.size());
+
+    for (int start=0;start<rows.size();start+=chunkSize) {
+      final List<String[]> chunk = rows.subList(start, Math.min(rows.size(), start + chunkSize));
+
+      chunks.add(executor.submit(new Callable<List<String[]>>() {
+        @Override
+        public List<String[]> call() {
+          List<String[]> results = new ArrayList<String[]>(chunk.size());
+
+          for (String[] row : chunk)
+            results.add(migrate(row));
+
+          return results;
+        }
+      }));
+    }
+
+    try {
+      for (Future<List<String[]>> chunk : chunks)
+        updates.addAll(chunk.get());
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    } catch (ExecutionException e) {
+      throw new AssertionError(e);
+    }
+
+    return updates;
+  }
+
+  private long getCheckpoint(Context context) {
+    return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+                  .getLong(CHECKPOINT_PREFIX + name, 0);
+  }
+
+  private void setCheckpoint(Context context, long lastId) {
+    context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+      .putLong(CHECKPOINT_PREFIX + name, lastId).commit();
+  }
+}
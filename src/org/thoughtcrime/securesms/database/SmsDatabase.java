@@ -72,7 +72,8 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     "CREATE INDEX IF NOT EXISTS sms_thread_id_index ON " + TABLE_NAME + " (" + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_index ON " + TABLE_NAME + " (" + READ + ");",
     "CREATE INDEX IF NOT EXISTS sms_read_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + THREAD_ID + ");",
-    "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");"
+    "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -95,13 +96,39 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
                " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
                " WHERE " + ID + " = ?", new String[] {id+""});
 
-    long threadId = getThreadIdForMessage(id);
+    long threadId = updateThreadForChange(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
 
+  /**
+   * Hands a changed message's body and type to its thread's summary.
+   *
+   * @return The message's thread id, or -1 if it no longer exists.
+   */
+  private long updateThreadForChange(long id) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, BODY, DATE_RECEIVED, TYPE},
+                        ID_WHERE, new String[] {id+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst())
+        return -1;
+
+      long threadId = cursor.getLong(0);
+
+      DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, cursor.getString(1),
+                                                                 cursor.getLong(2), cursor.getLong(3));
+      return threadId;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public long getThreadIdForMessage(long id) {
     String sql        = "SELECT " + THREAD_ID + " FROM " + TABLE_NAME + " WHERE " + ID + " = ?";
     String[] sqlArgs  = new String[] {id+""};
@@ -210,9 +237,10 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
                "WHERE " + ID + " = ?",
                new String[] {body, messageId+""});
 
-    long threadId = getThreadIdForMessage(messageId);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.SMS, messageId);
+
+    long threadId = updateThreadForChange(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
   }
@@ -251,7 +279,8 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     long messageId    = db.insert(TABLE_NAME, null, values);
 
     DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, values.getAsString(BODY),
+                                                               values.getAsLong(DATE_RECEIVED), type);
     notifyConversationListeners(threadId);
     Trimmer.trimThread(context, threadId);
 
@@ -282,7 +311,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
       SQLiteDatabase db = databaseHelper.getWritableDatabase();
       messageIds.add(db.insert(TABLE_NAME, ADDRESS, contentValues));
 
-      DatabaseFactory.getThreadDatabase(context).update(threadId);
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, message.getMessageBody(), date, type);
       notifyConversationListeners(threadId);
       Trimmer.trimThread(context, threadId);
     }
@@ -319,15 +348,33 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
   public void deleteMessage(long messageId) {
     Log.w("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long threadId     = getThreadIdForMessage(messageId);
+    long threadId     = -1;
+    long date         = 0;
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, DATE_RECEIVED}, ID_WHERE,
+                        new String[] {messageId+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        threadId = cursor.getLong(0);
+        date     = cursor.getLong(1);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    DatabaseFactory.getThreadDatabase(context).update(threadId);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.SMS, messageId);
+    DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, date);
     notifyConversationListeners(threadId);
   }
 
   /*package */void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
+    PlaintextCache.getInstance().invalidate(PlaintextCache.SMS);
   }
 
   /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
@@ -341,6 +388,7 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
 
     db.delete(TABLE_NAME, where, new String[] {threadId+""});
+    PlaintextCache.getInstance().invalidate(PlaintextCache.SMS);
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
@@ -354,11 +402,13 @@ public class SmsDatabase extends Database implements MmsSmsColumns {
     where = where.substring(0, where.length() - 4);
 
     db.delete(TABLE_NAME, where, null);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.SMS);
   }
 
   /*package */ void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.SMS);
   }
 
   /*package*/ SQLiteDatabase beginTransaction() {
@@ -34,9 +34,12 @@ import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.util.InvalidMessageException;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ThreadDatabase extends Database {
@@ -65,6 +68,8 @@ public class ThreadDatabase extends Database {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
   };
 
+  private static final int TRIM_BATCH_SIZE = 50;
+
   public ThreadDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -126,12 +131,14 @@ public class ThreadDatabase extends Database {
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    PlaintextCache.getInstance().invalidate(PlaintextCache.THREAD, threadId);
     notifyConversationListListeners();
   }
 
   private void deleteThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, ID_WHERE, new String[] {threadId+""});
+    PlaintextCache.getInstance().invalidate(PlaintextCache.THREAD, threadId);
     notifyConversationListListeners();
   }
 
@@ -146,59 +153,108 @@ public class ThreadDatabase extends Database {
     where = where.substring(0, where.length() - 4);
 
     db.delete(TABLE_NAME, where, null);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.THREAD);
     notifyConversationListListeners();
   }
 
   private void deleteAllThreads() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
+    PlaintextCache.getInstance().invalidate(PlaintextCache.THREAD);
     notifyConversationListListeners();
   }
 
+  /**
+   * Trims every thread longer than <code>length</code>.  Only threads whose
+   * message count is over the limit are visited, and they're trimmed in
+   * batches that each share a transaction.
+   */
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    List<Long> threadIds = new ArrayList<Long>();
+    Cursor     cursor    = null;
 
     try {
-      cursor = this.getConversationList();
+      SQLiteDatabase db = databaseHelper.getReadableDatabase();
+      cursor            = db.query(TABLE_NAME, new String[] {ID}, MESSAGE_COUNT + " > ?",
+                                   new String[] {length+""}, null, null, null);
 
+      while (cursor != null && cursor.moveToNext())
+        threadIds.add(cursor.getLong(0));
+    } finally {
       if (cursor != null)
-        threadCount = cursor.getCount();
+        cursor.close();
+    }
+
+    Log.w("ThreadDatabase", "Trimming " + threadIds.size() + " threads to: " + length);
 
-      while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    int complete      = 0;
+
+    while (complete < threadIds.size()) {
+      List<Long> batch = threadIds.subList(complete, Math.min(threadIds.size(), complete + TRIM_BATCH_SIZE));
+
+      db.beginTransaction();
+      try {
+        for (long threadId : batch)
+          trimThreadBeforeCutoff(threadId, length);
 
-        listener.onProgress(++complete, threadCount);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+
+      for (long threadId : batch)
+        notifyConversationListeners(threadId);
+
+      complete += batch.size();
+      listener.onProgress(complete, threadIds.size());
     }
+
+    notifyConversationListListeners();
   }
 
   public void trimThread(long threadId, int length) {
+    if (getMessageCount(threadId) <= length)
+      return;
+
     Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    if (trimThreadBeforeCutoff(threadId, length))
+      notifyConversationListeners(threadId);
+  }
 
-      if (cursor != null && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(cursor.getCount() - length);
+  /**
+   * Deletes everything older than the thread's <code>length</code>th newest
+   * message, then recomputes its summary.
+   *
+   * @return true if the thread was long enough to need trimming.
+   */
+  private boolean trimThreadBeforeCutoff(long threadId, int length) {
+    long cutoffDate = DatabaseFactory.getMmsSmsDatabase(context)
+                                     .getConversationCutoffDate(threadId, Long.MAX_VALUE, length);
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    if (cutoffDate == -1)
+      return false;
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    Log.w("ThreadDatabase", "Cut off date: " + cutoffDate);
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+    DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoffDate);
+    DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, cutoffDate);
 
-        update(threadId);
-        notifyConversationListeners(threadId);
-      }
+    update(threadId);
+    return true;
+  }
+
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    Cursor cursor     = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE,
+                        new String[] {threadId+""}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return 0;
     } finally {
       if (cursor != null)
         cursor.close();
@@ -397,10 +453,113 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Folds a newly inserted message into its thread's summary with a single
+   * statement, rather than recounting and requerying the conversation.  The
+   * message only replaces the snippet if it's the thread's first, or at
+   * least as new as the thread's current date.
+   */
+  public void updateForInsert(long threadId, String body, long date, long type) {
+    long   truncatedDate = date - date % 1000;
+    String isNewest      = "CASE WHEN " + MESSAGE_COUNT + " = 0 OR " + DATE + " <= ? ";
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+               SNIPPET       + " = " + isNewest + "THEN ? ELSE " + SNIPPET      + " END, " +
+               SNIPPET_TYPE  + " = " + isNewest + "THEN ? ELSE " + SNIPPET_TYPE + " END, " +
+               DATE          + " = " + isNewest + "THEN ? ELSE " + DATE         + " END, " +
+               MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID_WHERE,
+               new Object[] {truncatedDate, body, truncatedDate, type,
+                             truncatedDate, truncatedDate, threadId});
+
+    PlaintextCache.getInstance().invalidate(PlaintextCache.THREAD, threadId);
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Refreshes the snippet after a message's body or type has changed, if
+   * that message is the newest in its thread.
+   */
+  public void updateForChange(long threadId, String body, long date, long type) {
+    long truncatedDate = date - date % 1000;
+
+    ContentValues contentValues = new ContentValues(2);
+    contentValues.put(SNIPPET, body);
+    contentValues.put(SNIPPET_TYPE, type);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    int updated       = db.update(TABLE_NAME, contentValues, ID + " = ? AND " + DATE + " <= ?",
+                                  new String[] {threadId+"", truncatedDate+""});
+
+    if (updated > 0) {
+      PlaintextCache.getInstance().invalidate(PlaintextCache.THREAD, threadId);
+      notifyConversationListListeners();
+    }
+  }
+
+  /**
+   * Accounts for a single deleted message.  The summary is only recomputed
+   * when the message may have been the snippet, or was the last one.
+   */
+  public void updateForDelete(long threadId, long date) {
+    long   truncatedDate = date - date % 1000;
+    Cursor cursor        = null;
+
+    try {
+      SQLiteDatabase db = databaseHelper.getReadableDatabase();
+      cursor            = db.query(TABLE_NAME, new String[] {DATE, MESSAGE_COUNT}, ID_WHERE,
+                                   new String[] {threadId+""}, null, null, null);
+
+      if (cursor == null || !cursor.moveToFirst())
+        return;
+
+      long threadDate   = cursor.getLong(0);
+      long messageCount = cursor.getLong(1);
+
+      if (messageCount <= 1 || truncatedDate >= threadDate) {
+        update(threadId);
+        return;
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1" +
+               " WHERE " + ID_WHERE, new Object[] {threadId});
+
+    notifyConversationListListeners();
+  }
+
   public static interface ProgressListener {
     public void onProgress(int complete, int total);
   }
 
+  /**
+   * Queues the encrypted snippets of up to <code>count</code> rows starting at
+   * <code>position</code> for background decryption.  The cursor's position
+   * is left unchanged.
+   */
+  public void prefetchSnippets(MasterSecret masterSecret, Cursor cursor, int position, int count) {
+    if (masterSecret == null || cursor == null) return;
+
+    Map<Long, String> ciphertexts = new LinkedHashMap<Long, String>();
+    int originalPosition          = cursor.getPosition();
+
+    for (int i=Math.max(0, position);i<position+count && cursor.moveToPosition(i);i++) {
+      long threadId  = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+      long type      = cursor.getLong(cursor.getColumnIndexOrThrow(SNIPPET_TYPE));
+      String snippet = cursor.getString(cursor.getColumnIndexOrThrow(SNIPPET));
+
+      if (!Util.isEmpty(snippet) && MmsSmsColumns.Types.isSymmetricEncryption(type))
+        ciphertexts.put(threadId, snippet);
+    }
+
+    cursor.moveToPosition(originalPosition);
+    PlaintextCache.getInstance().prefetch(masterSecret, PlaintextCache.THREAD, ciphertexts);
+  }
+
   public Reader readerFor(Cursor cursor, MasterSecret masterSecret) {
     return new Reader(cursor, masterSecret);
   }
@@ -435,7 +594,7 @@ public class ThreadDatabase extends Database {
       String recipientId    = cursor.getString(cursor.getColumnIndexOrThrow(ThreadDatabase.RECIPIENT_IDS));
       Recipients recipients = RecipientFactory.getRecipientsForIds(context, recipientId, true);
 
-      DisplayRecord.Body body = getPlaintextBody(cursor);
+      DisplayRecord.Body body = getPlaintextBody(cursor, threadId);
       long date               = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.DATE));
       long count              = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.MESSAGE_COUNT));
       long read               = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.READ));
@@ -446,13 +605,20 @@ public class ThreadDatabase extends Database {
                               read == 1, threadId, type, distributionType);
     }
 
-    private DisplayRecord.Body getPlaintextBody(Cursor cursor) {
+    private DisplayRecord.Body getPlaintextBody(Cursor cursor, long threadId) {
       try {
         long type   = cursor.getLong(cursor.getColumnIndexOrThrow(ThreadDatabase.SNIPPET_TYPE));
         String body = cursor.getString(cursor.getColumnIndexOrThrow(SNIPPET));
 
         if (!Util.isEmpty(body) && masterCipher != null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
+          String plaintext = PlaintextCache.getInstance().get(PlaintextCache.THREAD, threadId, body);
+
+          if (plaintext == null) {
+            plaintext = masterCipher.decryptBody(body);
+            PlaintextCache.getInstance().put(PlaintextCache.THREAD, threadId, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
         } else if (!Util.isEmpty(body) && masterCipher == null && MmsSmsColumns.Types.isSymmetricEncryption(type)) {
           return new DisplayRecord.Body(body, false);
         } else {
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2011 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database.keys;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.thoughtcrime.securesms.crypto.InvalidKeyException;
+import org.thoughtcrime.securesms.crypto.KeyPair;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Key pairs generated ahead of time, waiting to be handed to a session.
+ *
+ * Each pair is stored in the same form as a LocalKeyRecord's, with its
+ * private key encrypted under the MasterSecret.  A pair is only decrypted
+ * when it's taken, and gets its real key id from the record it's moved to.
+ *
+ * Callers are expected to serialize load/modify/save cycles themselves.
+ */
+public class KeyPairPoolRecord extends Record {
+
+  private static final String ADDRESS        = "keypair-pool";
+  private static final int    FORMAT_VERSION = 1;
+  private static final int    POOL_KEY_ID    = 0;
+
+  private final LinkedList<byte[]> keyPairs = new LinkedList<byte[]>();
+
+  private final MasterSecret masterSecret;
+  private final MasterCipher masterCipher;
+
+  public KeyPairPoolRecord(Context context, MasterSecret masterSecret) {
+    super(context, ADDRESS);
+    this.masterSecret = masterSecret;
+    this.masterCipher = new MasterCipher(masterSecret);
+    loadData();
+  }
+
+  public int size() {
+    return keyPairs.size();
+  }
+
+  public void add(AsymmetricCipherKeyPair keyPair) {
+    keyPairs.addLast(new KeyPair(POOL_KEY_ID, keyPair, masterSecret).toBytes());
+  }
+
+  /**
+   * @return The oldest pair in the pool, or null if there are none left
+   * that decrypt.
+   */
+  public AsymmetricCipherKeyPair remove() {
+    while (!keyPairs.isEmpty()) {
+      try {
+        return new KeyPair(keyPairs.removeFirst(), masterCipher).getKeyPair();
+      } catch (InvalidKeyException ike) {
+        Log.w("KeyPairPoolRecord", "Discarding undecryptable pooled key pair", ike);
+      }
+    }
+
+    return null;
+  }
+
+  public void save() {
+    int bodyLength = INTEGER_LENGTH;
+
+    for (byte[] keyPair : keyPairs)
+      bodyLength += getBlobLength(keyPair);
+
+    ByteBuffer buffer = allocateRecord(bodyLength, FORMAT_VERSION);
+    writeInteger(keyPairs.size(), buffer);
+
+    for (byte[] keyPair : keyPairs)
+      writeBlob(keyPair, buffer);
+
+    writeRecord(buffer);
+  }
+
+  private void loadData() {
+    try {
+      ByteBuffer buffer = readRecord();
+      readFormatVersion(buffer);
+
+      int count = readInteger(buffer);
+
+      for (int i=0;i<count;i++)
+        keyPairs.addLast(readBlob(buffer));
+    } catch (FileNotFoundException e) {
+      // Nothing pooled yet.
+    } catch (IOException ioe) {
+      Log.w("KeyPairPoolRecord", ioe);
+      keyPairs.clear();
+    }
+  }
+}
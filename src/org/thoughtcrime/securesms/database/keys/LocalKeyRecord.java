@@ -21,7 +21,7 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.InvalidKeyException;
 import org.thoughtcrime.securesms.crypto.KeyPair;
-import org.thoughtcrime.securesms.crypto.KeyUtil;
+import org.thoughtcrime.securesms.crypto.KeyPairPool;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
@@ -29,15 +29,14 @@ import org.thoughtcrime.securesms.database.keys.InvalidKeyIdException;
 import org.thoughtcrime.securesms.database.keys.Record;
 import org.thoughtcrime.securesms.recipients.Recipient;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 
 public class LocalKeyRecord extends Record {
 
-  private static final Object FILE_LOCK = new Object();
+  private static final Object FILE_LOCK      = new Object();
+  private static final int    FORMAT_VERSION = 1;
 
   private KeyPair localCurrentKeyPair;
   private KeyPair localNextKeyPair;
@@ -69,7 +68,7 @@ public class LocalKeyRecord extends Record {
     Log.w("LocalKeyRecord", "Remote client acknowledges receiving key id: " + keyId);
     if (keyId == localNextKeyPair.getId()) {
       this.localCurrentKeyPair = this.localNextKeyPair;
-      this.localNextKeyPair    = new KeyPair(this.localNextKeyPair.getId()+1, KeyUtil.generateKeyPair(), masterSecret);
+      this.localNextKeyPair    = new KeyPair(this.localNextKeyPair.getId()+1, KeyPairPool.take(context, masterSecret), masterSecret);
     }
   }
 
@@ -97,22 +96,16 @@ public class LocalKeyRecord extends Record {
 
   public void save() {
     synchronized (FILE_LOCK) {
-      try {
-        RandomAccessFile file = openRandomAccessFile();
-        FileChannel out       = file.getChannel();
-        out.position(0);
+      byte[] currentKeyPairBytes = localCurrentKeyPair.toBytes();
+      byte[] nextKeyPairBytes    = localNextKeyPair.toBytes();
+      ByteBuffer buffer          = allocateRecord(getBlobLength(currentKeyPairBytes) +
+                                                  getBlobLength(nextKeyPairBytes),
+                                                  FORMAT_VERSION);
 
-        writeKeyPair(localCurrentKeyPair, out);
-        writeKeyPair(localNextKeyPair, out);
+      writeBlob(currentKeyPairBytes, buffer);
+      writeBlob(nextKeyPairBytes, buffer);
 
-        out.force(true);
-        out.truncate(out.position());
-        out.close();
-        file.close();
-      } catch (IOException ioe) {
-        Log.w("keyrecord", ioe);
-        // XXX
-      }
+      writeRecord(buffer);
     }
   }
 
@@ -120,10 +113,13 @@ public class LocalKeyRecord extends Record {
     Log.w("LocalKeyRecord", "Loading local key record...");
     synchronized (FILE_LOCK) {
       try {
-        FileInputStream in  = this.openInputStream();
-        localCurrentKeyPair = readKeyPair(in);
-        localNextKeyPair    = readKeyPair(in);
-        in.close();
+        ByteBuffer buffer = readRecord();
+
+        // Legacy records are the same two blobs without a header.
+        readFormatVersion(buffer);
+
+        localCurrentKeyPair = readKeyPair(buffer);
+        localNextKeyPair    = readKeyPair(buffer);
       } catch (FileNotFoundException e) {
         Log.w("LocalKeyRecord", "No local keypair set found.");
         return;
@@ -136,13 +132,8 @@ public class LocalKeyRecord extends Record {
     }
   }
 
-  private void writeKeyPair(KeyPair keyPair, FileChannel out) throws IOException {
-    byte[] keyPairBytes = keyPair.toBytes();
-    writeBlob(keyPairBytes, out);
-  }
-
-  private KeyPair readKeyPair(FileInputStream in) throws IOException, InvalidKeyException {
-    byte[] keyPairBytes = readBlob(in);
+  private KeyPair readKeyPair(ByteBuffer buffer) throws IOException, InvalidKeyException {
+    byte[] keyPairBytes = readBlob(buffer);
     return new KeyPair(keyPairBytes, masterCipher);
   }
 }
@@ -18,18 +18,30 @@ package org.thoughtcrime.securesms.database.keys;
 
 import android.content.Context;
 
-import org.thoughtcrime.securesms.util.Conversions;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Set;
+
+/**
+ * Base class for the per-recipient key records, which are kept in a
+ * {@link RecordStore} under files/sessions.
+ *
+ * Records are serialized into a single buffer: a magic number and a
+ * per-record format version, followed by big-endian integers and
+ * length-prefixed blobs.  Files written before the header existed use the
+ * same field encoding without it, so subclasses check
+ * {@link #readFormatVersion(ByteBuffer)} and fall back to their legacy
+ * layout; the next save rewrites them in the current format.
+ */
 
 public abstract class Record {
 
+  private static final int RECORD_MAGIC = 0x4B455952;
+
+  protected static final int INTEGER_LENGTH = 4;
+  protected static final int HEADER_LENGTH  = 2 * INTEGER_LENGTH;
+
   protected final String address;
   protected final Context context;
 
@@ -43,53 +55,97 @@ public abstract class Record {
   }
 
   protected static void delete(Context context, String address) {
-    getAddressFile(context, address).delete();
+    RecordCache.delete(context, address);
   }
 
   protected static  boolean hasRecord(Context context, String address) {
-    return getAddressFile(context, address).exists();
+    return RecordCache.exists(context, address);
   }
 
-  protected RandomAccessFile openRandomAccessFile() throws FileNotFoundException {
-    return new RandomAccessFile(getAddressFile(), "rw");
+  protected static Set<String> getAddresses(Context context) throws IOException {
+    return RecordCache.getAddresses(context);
   }
 
-  protected FileInputStream openInputStream() throws FileNotFoundException {
-    return new FileInputStream(getAddressFile().getAbsolutePath());
+  /**
+   * Blocks until the last save of each record is on disk.
+   */
+  public static void flush(Context context, Record... records) throws IOException {
+    String[] addresses = new String[records.length];
+
+    for (int i=0;i<records.length;i++)
+      addresses[i] = records[i].address;
+
+    RecordCache.flush(context, addresses);
   }
 
-  private File getAddressFile() {
-    return getAddressFile(context, address);
+  protected ByteBuffer allocateRecord(int bodyLength, int formatVersion) {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+    buffer.putInt(RECORD_MAGIC);
+    buffer.putInt(formatVersion);
+
+    return buffer;
   }
 
-  private static File getAddressFile(Context context, String address) {
-    return new File(context.getFilesDir().getAbsolutePath() + File.separatorChar + "sessions", address);
+  protected void writeRecord(ByteBuffer buffer) {
+    if (buffer.hasRemaining())
+      throw new AssertionError("Record length mismatch: " + buffer.remaining());
+
+    RecordCache.write(context, address, buffer.array());
   }
 
-  protected byte[] readBlob(FileInputStream in) throws IOException {
-    int length       = readInteger(in);
+  protected ByteBuffer readRecord() throws IOException {
+    return ByteBuffer.wrap(RecordCache.read(context, address));
+  }
+
+  /**
+   * Consumes the header if the buffer holds a current format record.
+   *
+   * @return The record's format version, or -1 for a legacy record, in
+   * which case the buffer is left at the start.
+   */
+  protected int readFormatVersion(ByteBuffer buffer) {
+    if (!isCurrentFormat(buffer))
+      return -1;
+
+    buffer.getInt();
+    return buffer.getInt();
+  }
+
+  private boolean isCurrentFormat(ByteBuffer buffer) {
+    return buffer.remaining() >= HEADER_LENGTH && buffer.getInt(buffer.position()) == RECORD_MAGIC;
+  }
+
+  protected static int getBlobLength(byte[] blobBytes) {
+    return INTEGER_LENGTH + blobBytes.length;
+  }
+
+  protected byte[] readBlob(ByteBuffer buffer) throws IOException {
+    int length = readInteger(buffer);
+
+    if (length < 0 || length > buffer.remaining())
+      throw new IOException("Bad blob length: " + length);
+
     byte[] blobBytes = new byte[length];
+    buffer.get(blobBytes);
 
-    in.read(blobBytes, 0, blobBytes.length);
     return blobBytes;
   }
 
-  protected void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    ByteBuffer buffer = ByteBuffer.wrap(blobBytes);
-    out.write(buffer);
+  protected void writeBlob(byte[] blobBytes, ByteBuffer buffer) {
+    buffer.putInt(blobBytes.length);
+    buffer.put(blobBytes);
   }
 
-  protected int readInteger(FileInputStream in) throws IOException {
-    byte[] integer = new byte[4];
-    in.read(integer, 0, integer.length);
-    return Conversions.byteArrayToInt(integer);
+  protected int readInteger(ByteBuffer buffer) throws IOException {
+    try {
+      return buffer.getInt();
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated record");
+    }
   }
 
-  protected void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    ByteBuffer buffer = ByteBuffer.wrap(valueBytes);
-    out.write(buffer);
+  protected void writeInteger(int value, ByteBuffer buffer) {
+    buffer.putInt(value);
   }
 
 }
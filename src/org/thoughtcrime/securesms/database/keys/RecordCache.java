@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2013 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database.keys;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory cache in front of the {@link RecordStore} that holds the
+ * serialized key records, keyed by record address (the canonical recipient
+ * id plus a suffix).
+ *
+ * Reads are served from memory after the first load.  Writes update the
+ * cached copy and are appended to the store in a single batch shortly
+ * afterwards, so a burst of messages from one contact costs one durable
+ * write per record rather than one per message.  Records that must not be
+ * lost can be written through with {@link #flush(Context, String...)}.
+ * The cached bytes are the
+ * same MasterSecret encrypted blobs that live on disk, so nothing here
+ * needs clearing when the passphrase cache times out.
+ */
+
+public class RecordCache {
+
+  private static final int  MAX_ENTRIES    = 96;
+  private static final long FLUSH_DELAY_MS = 750;
+
+  private static final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES && !eldest.getValue().dirty;
+    }
+  };
+
+  private static final Object                   FLUSH_LOCK = new Object();
+  private static final ScheduledExecutorService flusher    = Executors.newSingleThreadScheduledExecutor();
+
+  private static boolean     flushScheduled = false;
+  private static File        directory;
+  private static RecordStore store;
+
+  public static byte[] read(Context context, String address) throws IOException {
+    synchronized (cache) {
+      Entry entry = cache.get(address);
+
+      if (entry != null) {
+        if (entry.data == null) throw new FileNotFoundException(address);
+        else                    return entry.data;
+      }
+    }
+
+    byte[] data = getStore(context).read(address);
+
+    synchronized (cache) {
+      Entry entry = cache.get(address);
+
+      if (entry == null) {
+        entry = new Entry(data, false);
+        cache.put(address, entry);
+      }
+
+      if (entry.data == null) throw new FileNotFoundException(address);
+      else                    return entry.data;
+    }
+  }
+
+  public static void write(Context context, String address, byte[] data) {
+    synchronized (cache) {
+      setDirectory(context);
+      cache.put(address, new Entry(data, true));
+      scheduleFlush();
+    }
+  }
+
+  public static boolean exists(Context context, String address) {
+    synchronized (cache) {
+      Entry entry = cache.get(address);
+      if (entry != null) return entry.data != null;
+    }
+
+    try {
+      return getStore(context).contains(address);
+    } catch (IOException ioe) {
+      Log.w("RecordCache", ioe);
+      return false;
+    }
+  }
+
+  public static void delete(Context context, String address) {
+    synchronized (cache) {
+      setDirectory(context);
+      cache.put(address, new Entry(null, true));
+      scheduleFlush();
+    }
+  }
+
+  /**
+   * @return The addresses of every record, including those not yet flushed.
+   */
+  public static Set<String> getAddresses(Context context) throws IOException {
+    Set<String> addresses = getStore(context).getAddresses();
+
+    synchronized (cache) {
+      for (Map.Entry<String, Entry> entry : cache.entrySet()) {
+        if (entry.getValue().data == null) addresses.remove(entry.getKey());
+        else                               addresses.add(entry.getKey());
+      }
+    }
+
+    return addresses;
+  }
+
+  /**
+   * Synchronously writes every dirty record to disk.
+   */
+  public static void flush() {
+    synchronized (FLUSH_LOCK) {
+      Map<String, byte[]> dirty   = new HashMap<String, byte[]>();
+      List<Entry>         entries = new LinkedList<Entry>();
+
+      synchronized (cache) {
+        flushScheduled = false;
+
+        for (Map.Entry<String, Entry> entry : cache.entrySet()) {
+          if (entry.getValue().dirty) {
+            dirty.put(entry.getKey(), entry.getValue().data);
+            entries.add(entry.getValue());
+          }
+        }
+      }
+
+      try {
+        writeEntries(dirty, entries);
+      } catch (IOException ioe) {
+        Log.w("RecordCache", ioe);
+
+        synchronized (cache) {
+          scheduleFlush();
+        }
+      }
+    }
+  }
+
+  /**
+   * Synchronously writes the given records to disk, if they have unflushed
+   * changes, for state that has to be durable before we act on it (e.g. a
+   * session's counter before the ciphertext it was used for goes out).
+   */
+  public static void flush(Context context, String... addresses) throws IOException {
+    synchronized (FLUSH_LOCK) {
+      Map<String, byte[]> dirty   = new HashMap<String, byte[]>();
+      List<Entry>         entries = new LinkedList<Entry>();
+
+      synchronized (cache) {
+        setDirectory(context);
+
+        for (String address : addresses) {
+          Entry entry = cache.get(address);
+
+          if (entry != null && entry.dirty) {
+            dirty.put(address, entry.data);
+            entries.add(entry);
+          }
+        }
+      }
+
+      writeEntries(dirty, entries);
+    }
+  }
+
+  /**
+   * Drops every cached record without writing it and closes the store, for
+   * when the files on disk have been replaced underneath us (e.g. an import).
+   */
+  public static void clear() {
+    synchronized (FLUSH_LOCK) {
+      synchronized (RecordCache.class) {
+        synchronized (cache) {
+          cache.clear();
+        }
+
+        if (store != null) store.close();
+        store = null;
+      }
+    }
+  }
+
+  /**
+   * Drops every cached record and keeps the store closed while
+   * <code>replacement</code> swaps the files on disk, so that neither a
+   * pending flush nor a read can touch a half copied log.  Records written
+   * in the meantime are dropped along with the rest.
+   */
+  public static void replace(Replacement replacement) throws IOException {
+    synchronized (FLUSH_LOCK) {
+      synchronized (RecordCache.class) {
+        clear();
+
+        try {
+          replacement.run();
+        } finally {
+          clear();
+        }
+      }
+    }
+  }
+
+  public interface Replacement {
+    public void run() throws IOException;
+  }
+
+  private static RecordStore getStore(Context context) throws IOException {
+    synchronized (cache) {
+      setDirectory(context);
+    }
+
+    return getStore();
+  }
+
+  private static synchronized RecordStore getStore() throws IOException {
+    if (store == null) {
+      File storeDirectory;
+
+      synchronized (cache) {
+        storeDirectory = directory;
+      }
+
+      if (storeDirectory == null)
+        throw new IOException("No record directory!");
+
+      store = new RecordStore(storeDirectory);
+    }
+
+    return store;
+  }
+
+  private static void writeEntries(Map<String, byte[]> dirty, List<Entry> entries) throws IOException {
+    if (dirty.isEmpty())
+      return;
+
+    getStore().write(dirty);
+
+    synchronized (cache) {
+      for (Entry entry : entries)
+        entry.dirty = false;
+    }
+
+    Log.w("RecordCache", "Flushed " + dirty.size() + " key records.");
+  }
+
+  private static void setDirectory(Context context) {
+    if (directory == null)
+      directory = new File(context.getFilesDir().getAbsolutePath() + File.separatorChar + "sessions");
+  }
+
+  private static void scheduleFlush() {
+    if (flushScheduled) return;
+
+    flushScheduled = true;
+    flusher.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private static class Entry {
+    private final byte[]  data;
+    private       boolean dirty;
+
+    public Entry(byte[] data, boolean dirty) {
+      this.data  = data;
+      this.dirty = dirty;
+    }
+  }
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright (C) 2013 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.database.keys;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log holding every key record, with an in-memory index from
+ * record address to the record's position in the log.
+ *
+ * Each entry is the address, the record bytes (or a tombstone) and a CRC32
+ * of both.  Opening the store maps the log once to rebuild the index, and a
+ * torn entry at the tail from an interrupted write is truncated away.  Once
+ * the log is mostly superseded entries it is compacted by copying the live
+ * records to a new log and renaming it over the old one.
+ *
+ * Per-recipient files left in the directory by older versions, or by an
+ * import, are folded into the log when the store is opened.
+ */
+
+class RecordStore {
+
+  private static final String LOG_NAME          = "records.log";
+  private static final String TEMPORARY_SUFFIX  = ".tmp";
+  private static final int    LOG_MAGIC         = 0x4B4C4F47;
+  private static final int    LOG_VERSION       = 1;
+  private static final int    LOG_HEADER_LENGTH = 8;
+  private static final int    INTEGER_LENGTH    = 4;
+  private static final int    TOMBSTONE         = -1;
+  private static final long   MIN_COMPACT_SIZE  = 64 * 1024;
+
+  private static final String LEGACY_RECORD_PATTERN = "[0-9]+(-local|-remote)?";
+
+  private final File                  directory;
+  private final File                  logFile;
+  private final Map<String, Location> index = new HashMap<String, Location>();
+
+  private RandomAccessFile log;
+  private long             liveBytes;
+
+  public RecordStore(File directory) throws IOException {
+    this.directory = directory;
+    this.logFile   = new File(directory, LOG_NAME);
+
+    directory.mkdirs();
+
+    openLog();
+    importLegacyRecords();
+  }
+
+  public synchronized boolean contains(String address) {
+    return index.containsKey(address);
+  }
+
+  public synchronized Set<String> getAddresses() {
+    return new HashSet<String>(index.keySet());
+  }
+
+  public synchronized byte[] read(String address) throws IOException {
+    Location location = index.get(address);
+
+    if (location == null)
+      return null;
+
+    ByteBuffer buffer = ByteBuffer.allocate(location.length);
+    readFully(buffer, location.offset);
+
+    return buffer.array();
+  }
+
+  /**
+   * Appends a batch of records to the log with a single write and sync.
+   *
+   * @param records A map of address to record bytes, or to null for a record
+   * that's been deleted.
+   */
+  public synchronized void write(Map<String, byte[]> records) throws IOException {
+    int length = 0;
+
+    for (Map.Entry<String, byte[]> record : records.entrySet())
+      length += getEntryLength(record.getKey(), record.getValue());
+
+    ByteBuffer   buffer  = ByteBuffer.allocate(length);
+    long         offset  = log.length();
+    List<String> order   = new ArrayList<String>(records.size());
+    int[]        offsets = new int[records.size() + 1];
+
+    for (Map.Entry<String, byte[]> record : records.entrySet()) {
+      offsets[order.size()] = buffer.position();
+      order.add(record.getKey());
+      putEntry(buffer, record.getKey(), record.getValue());
+    }
+
+    offsets[order.size()] = buffer.position();
+    buffer.flip();
+
+    FileChannel channel = log.getChannel();
+
+    try {
+      while (buffer.hasRemaining())
+        channel.write(buffer, offset + buffer.position());
+
+      channel.force(false);
+    } catch (IOException ioe) {
+      // Don't leave a partial batch for the next append to land after.
+      log.setLength(offset);
+      throw ioe;
+    }
+
+    // Only index the batch once it's on disk.
+    for (int i=0;i<order.size();i++) {
+      String address = order.get(i);
+      updateIndex(address, records.get(address) != null, offset + offsets[i], offsets[i+1] - offsets[i]);
+    }
+
+    try {
+      compactIfNecessary();
+    } catch (IOException ioe) {
+      Log.w("RecordStore", "Compaction failed", ioe);
+    }
+  }
+
+  public synchronized void close() {
+    try {
+      log.close();
+    } catch (IOException ioe) {
+      Log.w("RecordStore", ioe);
+    }
+  }
+
+  private void openLog() throws IOException {
+    this.log       = new RandomAccessFile(logFile, "rw");
+    this.liveBytes = 0;
+    this.index.clear();
+
+    if (log.length() < LOG_HEADER_LENGTH) {
+      ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_LENGTH);
+      header.putInt(LOG_MAGIC);
+      header.putInt(LOG_VERSION);
+      header.flip();
+
+      log.setLength(0);
+      log.getChannel().write(header, 0);
+      log.getChannel().force(true);
+      return;
+    }
+
+    MappedByteBuffer mapped = log.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, log.length());
+
+    if (mapped.getInt() != LOG_MAGIC || mapped.getInt() != LOG_VERSION)
+      throw new IOException("Unknown record log format: " + logFile);
+
+    while (mapped.hasRemaining()) {
+      int start = mapped.position();
+
+      try {
+        String address = getEntry(mapped);
+        updateIndex(address, !isTombstone(mapped, start), start, mapped.position() - start);
+      } catch (IOException ioe) {
+        Log.w("RecordStore", "Truncating torn record log at: " + start);
+        log.setLength(start);
+        break;
+      }
+    }
+  }
+
+  private void importLegacyRecords() throws IOException {
+    File[] files = directory.listFiles();
+
+    if (files == null)
+      return;
+
+    Map<String, byte[]> records     = new HashMap<String, byte[]>();
+    Set<File>           legacyFiles = new HashSet<File>();
+
+    for (File file : files) {
+      String name = file.getName();
+
+      if (file.isFile() && name.matches(LEGACY_RECORD_PATTERN)) {
+        records.put(name, readFile(file));
+        legacyFiles.add(file);
+      } else if (file.isFile() && name.endsWith(TEMPORARY_SUFFIX)) {
+        file.delete();
+      }
+    }
+
+    if (records.isEmpty())
+      return;
+
+    write(records);
+
+    for (File file : legacyFiles)
+      file.delete();
+
+    Log.w("RecordStore", "Imported " + records.size() + " legacy key records.");
+  }
+
+  private void compactIfNecessary() throws IOException {
+    long logLength = log.length();
+
+    if (logLength < MIN_COMPACT_SIZE || logLength < 2 * liveBytes)
+      return;
+
+    File             temporaryFile = new File(directory, LOG_NAME + TEMPORARY_SUFFIX);
+    RandomAccessFile compacted     = new RandomAccessFile(temporaryFile, "rw");
+
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate((int)(LOG_HEADER_LENGTH + liveBytes));
+      buffer.putInt(LOG_MAGIC);
+      buffer.putInt(LOG_VERSION);
+
+      for (Location location : index.values()) {
+        ByteBuffer entry = ByteBuffer.allocate(location.entryLength);
+        readFully(entry, location.entryOffset);
+        entry.flip();
+        buffer.put(entry);
+      }
+
+      buffer.flip();
+      compacted.setLength(0);
+
+      FileChannel channel = compacted.getChannel();
+
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+
+      channel.force(true);
+    } finally {
+      compacted.close();
+    }
+
+    // Rename while the old log is still open, so that if it fails we carry
+    // on appending to the old log rather than being left closed.
+    if (!temporaryFile.renameTo(logFile)) {
+      temporaryFile.delete();
+      throw new IOException("Rename failed for: " + logFile);
+    }
+
+    log.close();
+    openLog();
+
+    Log.w("RecordStore", "Compacted record log from " + logLength + " to " + log.length() + " bytes.");
+  }
+
+  private void updateIndex(String address, boolean live, long entryOffset, int entryLength) {
+    Location previous = index.remove(address);
+
+    if (previous != null)
+      liveBytes -= previous.entryLength;
+
+    if (live) {
+      int dataOffset = INTEGER_LENGTH + getUtf8Length(address) + INTEGER_LENGTH;
+      int dataLength = entryLength - dataOffset - INTEGER_LENGTH;
+
+      index.put(address, new Location(entryOffset, entryLength, entryOffset + dataOffset, dataLength));
+      liveBytes += entryLength;
+    }
+  }
+
+  private void readFully(ByteBuffer buffer, long offset) throws IOException {
+    FileChannel channel = log.getChannel();
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) == -1)
+        throw new IOException("Short read on: " + logFile);
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer  buffer  = ByteBuffer.allocate((int)channel.size());
+
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) == -1)
+          throw new IOException("Short read on: " + file);
+      }
+
+      return buffer.array();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int getEntryLength(String address, byte[] record) {
+    return INTEGER_LENGTH + getUtf8Length(address) +
+           INTEGER_LENGTH + (record == null ? 0 : record.length) +
+           INTEGER_LENGTH;
+  }
+
+  private static void putEntry(ByteBuffer buffer, String address, byte[] record) {
+    byte[] addressBytes = getUtf8Bytes(address);
+    int    start        = buffer.position();
+
+    buffer.putInt(addressBytes.length);
+    buffer.put(addressBytes);
+
+    if (record == null) {
+      buffer.putInt(TOMBSTONE);
+    } else {
+      buffer.putInt(record.length);
+      buffer.put(record);
+    }
+
+    buffer.putInt(getChecksum(buffer, start, buffer.position()));
+  }
+
+  /**
+   * Reads and verifies one entry, leaving the buffer positioned after it.
+   *
+   * @return The entry's address.
+   */
+  private static String getEntry(ByteBuffer buffer) throws IOException {
+    int start = buffer.position();
+
+    try {
+      int addressLength = buffer.getInt();
+
+      if (addressLength < 0 || addressLength > buffer.remaining())
+        throw new IOException("Bad address length: " + addressLength);
+
+      byte[] addressBytes = new byte[addressLength];
+      buffer.get(addressBytes);
+
+      int recordLength = buffer.getInt();
+
+      if (recordLength != TOMBSTONE) {
+        if (recordLength < 0 || recordLength > buffer.remaining())
+          throw new IOException("Bad record length: " + recordLength);
+
+        buffer.position(buffer.position() + recordLength);
+      }
+
+      int end      = buffer.position();
+      int checksum = buffer.getInt();
+
+      if (checksum != getChecksum(buffer, start, end))
+        throw new IOException("Bad checksum at: " + start);
+
+      return new String(addressBytes, "UTF-8");
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated entry at: " + start);
+    }
+  }
+
+  private static boolean isTombstone(ByteBuffer buffer, int entryStart) {
+    int addressLength = buffer.getInt(entryStart);
+    return buffer.getInt(entryStart + INTEGER_LENGTH + addressLength) == TOMBSTONE;
+  }
+
+  private static int getChecksum(ByteBuffer buffer, int start, int end) {
+    CRC32 crc = new CRC32();
+
+    if (buffer.hasArray()) {
+      crc.update(buffer.array(), buffer.arrayOffset() + start, end - start);
+    } else {
+      byte[]     bytes = new byte[end - start];
+      ByteBuffer entry = buffer.duplicate();
+
+      entry.position(start);
+      entry.get(bytes);
+      crc.update(bytes, 0, bytes.length);
+    }
+
+    return (int)crc.getValue();
+  }
+
+  private static int getUtf8Length(String address) {
+    return getUtf8Bytes(address).length;
+  }
+
+  private static byte[] getUtf8Bytes(String address) {
+    try {
+      return address.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static class Location {
+    private final long entryOffset;
+    private final int  entryLength;
+    private final long offset;
+    private final int  length;
+
+    public Location(long entryOffset, int entryLength, long offset, int length) {
+      this.entryOffset = entryOffset;
+      this.entryLength = entryLength;
+      this.offset      = offset;
+      this.length      = length;
+    }
+  }
+}
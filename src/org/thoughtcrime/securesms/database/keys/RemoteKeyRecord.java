@@ -27,11 +27,9 @@ import org.thoughtcrime.securesms.database.keys.Record;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.Hex;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 
 /**
  * Represents the current and last public key belonging to the "remote"
@@ -41,7 +39,8 @@ import java.nio.channels.FileChannel;
  */
 
 public class RemoteKeyRecord extends Record {
-  private static final Object FILE_LOCK = new Object();
+  private static final Object FILE_LOCK      = new Object();
+  private static final int    FORMAT_VERSION = 1;
 
   private PublicKey remoteKeyCurrent;
   private PublicKey remoteKeyLast;
@@ -97,22 +96,15 @@ public class RemoteKeyRecord extends Record {
   public void save() {
     Log.w("RemoteKeyRecord", "Saving remote key record for recipient: " + this.address);
     synchronized (FILE_LOCK) {
-      try {
-        RandomAccessFile file = openRandomAccessFile();
-        FileChannel out       = file.getChannel();
-        Log.w("RemoteKeyRecord", "Opened file of size: " + out.size());
-        out.position(0);
+      byte[] currentKeyBytes = serializeKey(remoteKeyCurrent);
+      byte[] lastKeyBytes    = serializeKey(remoteKeyLast);
+      ByteBuffer buffer      = allocateRecord(getBlobLength(currentKeyBytes) + getBlobLength(lastKeyBytes),
+                                              FORMAT_VERSION);
 
-        writeKey(remoteKeyCurrent, out);
-        writeKey(remoteKeyLast, out);
+      writeBlob(currentKeyBytes, buffer);
+      writeBlob(lastKeyBytes, buffer);
 
-        out.truncate(out.position());
-        out.close();
-        file.close();
-      } catch (IOException ioe) {
-        Log.w("keyrecord", ioe);
-        // XXX
-      }
+      writeRecord(buffer);
     }
   }
 
@@ -120,10 +112,13 @@ public class RemoteKeyRecord extends Record {
     Log.w("RemoteKeyRecord", "Loading remote key record for recipient: " + this.address);
     synchronized (FILE_LOCK) {
       try {
-        FileInputStream in  = this.openInputStream();
-        remoteKeyCurrent    = readKey(in);
-        remoteKeyLast       = readKey(in);
-        in.close();
+        ByteBuffer buffer = readRecord();
+
+        // Legacy records are the same two blobs without a header.
+        readFormatVersion(buffer);
+
+        remoteKeyCurrent = readKey(buffer);
+        remoteKeyLast    = readKey(buffer);
       } catch (FileNotFoundException e) {
         Log.w("RemoteKeyRecord", "No remote keys found.");
         return;
@@ -134,15 +129,15 @@ public class RemoteKeyRecord extends Record {
     }
   }
 
-  private void writeKey(PublicKey key, FileChannel out) throws IOException {
+  private byte[] serializeKey(PublicKey key) {
     byte[] keyBytes = key.serialize();
     Log.w("RemoteKeyRecord", "Serializing remote key bytes: " + Hex.toString(keyBytes));
-    writeBlob(keyBytes, out);
+    return keyBytes;
   }
 
-  private PublicKey readKey(FileInputStream in) throws IOException {
+  private PublicKey readKey(ByteBuffer buffer) throws IOException {
     try {
-      byte[] keyBytes = readBlob(in);
+      byte[] keyBytes = readBlob(buffer);
       return new PublicKey(keyBytes);
     } catch (InvalidKeyException ike) {
       throw new AssertionError(ike);
@@ -20,6 +20,7 @@ import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.SessionCipher;
 import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.InvalidMessageException;
 import org.thoughtcrime.securesms.util.Util;
 
 import javax.crypto.spec.SecretKeySpec;
@@ -48,7 +49,7 @@ public class SessionKey {
     this.masterCipher = new MasterCipher(masterSecret);
   }
 
-  public SessionKey(byte[] bytes, MasterSecret masterSecret) {
+  public SessionKey(byte[] bytes, MasterSecret masterSecret) throws InvalidMessageException {
     this.masterCipher = new MasterCipher(masterSecret);
     deserialize(bytes);
   }
@@ -63,8 +64,8 @@ public class SessionKey {
     return masterCipher.encryptBytes(combined);
   }
 
-  private void deserialize(byte[] bytes) {
-    byte[] decrypted = masterCipher.encryptBytes(bytes);
+  private void deserialize(byte[] bytes) throws InvalidMessageException {
+    byte[] decrypted = masterCipher.decryptBytes(bytes);
     this.localKeyId  = Conversions.byteArrayToMedium(decrypted, 0);
     this.remoteKeyId = Conversions.byteArrayToMedium(decrypted, 3);
 
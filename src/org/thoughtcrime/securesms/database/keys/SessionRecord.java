@@ -24,12 +24,16 @@ import org.thoughtcrime.securesms.crypto.InvalidKeyException;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.CanonicalAddressDatabase;
 import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.util.InvalidMessageException;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A disk record representing a current session.
@@ -38,9 +42,10 @@ import java.nio.channels.FileChannel;
  */
 
 public class SessionRecord extends Record {
-  private static final int CURRENT_VERSION_MARKER  = 0X55555556;
-  private static final int[] VALID_VERSION_MARKERS = {CURRENT_VERSION_MARKER, 0X55555555};
-  private static final Object FILE_LOCK            = new Object();
+  private static final int FORMAT_VERSION          = 1;
+  private static final int[] LEGACY_VERSION_MARKERS = {0X55555557, 0X55555556, 0X55555555};
+  private static final Object FILE_LOCK             = new Object();
+  private static final int MAX_SESSION_KEYS         = 8;
 
   private int counter;
   private byte[] localFingerprint;
@@ -48,9 +53,15 @@ public class SessionRecord extends Record {
   private int sessionVersion;
 
   private IdentityKey identityKey;
-  private SessionKey sessionKeyRecord;
   private boolean verifiedSessionKey;
 
+  private final Map<Long, SessionKey> sessionKeys = new LinkedHashMap<Long, SessionKey>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, SessionKey> eldest) {
+      return size() > MAX_SESSION_KEYS;
+    }
+  };
+
   private final MasterSecret masterSecret;
 
   public SessionRecord(Context context, MasterSecret masterSecret, Recipient recipient) {
@@ -73,17 +84,59 @@ public class SessionRecord extends Record {
     return Record.hasRecord(context, getRecipientId(context, recipient)+"");
   }
 
+  public static List<Long> getRecipientIds(Context context) throws IOException {
+    List<Long> recipientIds = new ArrayList<Long>();
+
+    for (String address : Record.getAddresses(context)) {
+      if (address.matches("[0-9]+"))
+        recipientIds.add(Long.parseLong(address));
+    }
+
+    return recipientIds;
+  }
+
   private static long getRecipientId(Context context, Recipient recipient) {
     return CanonicalAddressDatabase.getInstance(context).getCanonicalAddress(recipient.getNumber());
   }
 
-  public void setSessionKey(SessionKey sessionKeyRecord) {
-    this.sessionKeyRecord = sessionKeyRecord;
+  /**
+   * Remembers a derived session key, so that the next message which uses the
+   * same local and remote key ids in the same direction can skip the ECDH
+   * agreement.  Only the most recently used keys are kept.
+   */
+  public void setSessionKey(int mode, SessionKey sessionKey) {
+    this.sessionKeys.put(getSessionKeyIndex(mode, sessionKey.getLocalKeyId(), sessionKey.getRemoteKeyId()),
+                         sessionKey);
+  }
+
+  public void clearSessionKeys() {
+    this.sessionKeys.clear();
+  }
+
+  /**
+   * Drops any remembered session keys whose local or remote key id has been
+   * ratcheted away, so that a retired key can't decrypt anything and isn't
+   * kept on disk.
+   */
+  public void retainLiveSessionKeys(LocalKeyRecord localRecord, RemoteKeyRecord remoteRecord) {
+    Iterator<SessionKey> iterator = this.sessionKeys.values().iterator();
+
+    while (iterator.hasNext()) {
+      SessionKey sessionKey = iterator.next();
+
+      try {
+        localRecord.getKeyPairForId(sessionKey.getLocalKeyId());
+        remoteRecord.getKeyForId(sessionKey.getRemoteKeyId());
+      } catch (InvalidKeyIdException e) {
+        iterator.remove();
+      }
+    }
   }
 
   public void setSessionId(byte[] localFingerprint, byte[] remoteFingerprint) {
     this.localFingerprint  = localFingerprint;
     this.remoteFingerprint = remoteFingerprint;
+    clearSessionKeys();
   }
 
   public void setIdentityKey(IdentityKey identityKey) {
@@ -126,22 +179,37 @@ public class SessionRecord extends Record {
     return this.verifiedSessionKey;
   }
 
-  private void writeIdentityKey(FileChannel out) throws IOException {
-    if (identityKey == null) writeBlob(new byte[0], out);
-    else                     writeBlob(identityKey.serialize(), out);
+  private byte[] serializeIdentityKey() {
+    if (identityKey == null) return new byte[0];
+    else                     return identityKey.serialize();
   }
 
-  private boolean isValidVersionMarker(int versionMarker) {
-    for (int VALID_VERSION_MARKER : VALID_VERSION_MARKERS)
-      if (versionMarker == VALID_VERSION_MARKER)
+  private void readSessionKeys(ByteBuffer buffer) throws IOException {
+    int count = readInteger(buffer);
+
+    for (int i=0;i<count;i++) {
+      int    mode            = readInteger(buffer);
+      byte[] sessionKeyBytes = readBlob(buffer);
+
+      try {
+        setSessionKey(mode, new SessionKey(sessionKeyBytes, masterSecret));
+      } catch (InvalidMessageException ime) {
+        Log.w("SessionRecord", ime);
+      }
+    }
+  }
+
+  private boolean isLegacyVersionMarker(int versionMarker) {
+    for (int LEGACY_VERSION_MARKER : LEGACY_VERSION_MARKERS)
+      if (versionMarker == LEGACY_VERSION_MARKER)
         return true;
 
     return false;
   }
 
-  private void readIdentityKey(FileInputStream in) throws IOException {
+  private void readIdentityKey(ByteBuffer buffer) throws IOException {
     try {
-      byte[] blob = readBlob(in);
+      byte[] blob = readBlob(buffer);
 
       if (blob.length == 0) this.identityKey = null;
       else                  this.identityKey = new IdentityKey(blob, 0);
@@ -152,62 +220,57 @@ public class SessionRecord extends Record {
 
   public void save() {
     synchronized (FILE_LOCK) {
-      try {
-        RandomAccessFile file = openRandomAccessFile();
-        FileChannel out       = file.getChannel();
-        out.position(0);
-
-        writeInteger(CURRENT_VERSION_MARKER, out);
-        writeInteger(counter, out);
-        writeBlob(localFingerprint, out);
-        writeBlob(remoteFingerprint, out);
-        writeInteger(sessionVersion, out);
-        writeIdentityKey(out);
-        writeInteger(verifiedSessionKey ? 1 : 0, out);
-
-        if (sessionKeyRecord != null)
-          writeBlob(sessionKeyRecord.serialize(), out);
-
-        out.truncate(out.position());
-        file.close();
-      } catch (IOException ioe) {
-        throw new IllegalArgumentException(ioe);
+      byte[]        identityKeyBytes = serializeIdentityKey();
+      List<Integer> sessionKeyModes  = new ArrayList<Integer>(sessionKeys.size());
+      List<byte[]>  sessionKeyBytes  = new ArrayList<byte[]>(sessionKeys.size());
+      int           length           = 4 * INTEGER_LENGTH               +
+                                       getBlobLength(localFingerprint)  +
+                                       getBlobLength(remoteFingerprint) +
+                                       getBlobLength(identityKeyBytes);
+
+      for (Map.Entry<Long, SessionKey> entry : sessionKeys.entrySet()) {
+        byte[] serialized = entry.getValue().serialize();
+
+        sessionKeyModes.add(getSessionKeyMode(entry.getKey()));
+        sessionKeyBytes.add(serialized);
+        length += INTEGER_LENGTH + getBlobLength(serialized);
       }
+
+      ByteBuffer buffer = allocateRecord(length, FORMAT_VERSION);
+
+      writeInteger(counter, buffer);
+      writeBlob(localFingerprint, buffer);
+      writeBlob(remoteFingerprint, buffer);
+      writeInteger(sessionVersion, buffer);
+      writeBlob(identityKeyBytes, buffer);
+      writeInteger(verifiedSessionKey ? 1 : 0, buffer);
+      writeInteger(sessionKeyBytes.size(), buffer);
+
+      for (int i=0;i<sessionKeyBytes.size();i++) {
+        writeInteger(sessionKeyModes.get(i), buffer);
+        writeBlob(sessionKeyBytes.get(i), buffer);
+      }
+
+      writeRecord(buffer);
     }
   }
 
   private void loadData() {
     synchronized (FILE_LOCK) {
       try {
-        FileInputStream in = this.openInputStream();
-        int versionMarker  = readInteger(in);
-
-        // Sigh, always put a version number on everything.
-        if (!isValidVersionMarker(versionMarker)) {
-          this.counter           = versionMarker;
-          this.localFingerprint  = readBlob(in);
-          this.remoteFingerprint = readBlob(in);
-          this.sessionVersion    = 31337;
+        ByteBuffer buffer = readRecord();
+        int formatVersion = readFormatVersion(buffer);
 
-          if (in.available() != 0)
-            this.sessionKeyRecord = new SessionKey(readBlob(in), masterSecret);
-
-          in.close();
+        if (formatVersion == -1) {
+          loadLegacyData(buffer);
         } else {
-          this.counter           = readInteger(in);
-          this.localFingerprint  = readBlob(in);
-          this.remoteFingerprint = readBlob(in);
-          this.sessionVersion    = readInteger(in);
-
-          if (versionMarker >=  0X55555556) {
-            readIdentityKey(in);
-            this.verifiedSessionKey = (readInteger(in) == 1);
-          }
-
-          if (in.available() != 0)
-            this.sessionKeyRecord = new SessionKey(readBlob(in), masterSecret);
-
-          in.close();
+          this.counter            = readInteger(buffer);
+          this.localFingerprint   = readBlob(buffer);
+          this.remoteFingerprint  = readBlob(buffer);
+          this.sessionVersion     = readInteger(buffer);
+          readIdentityKey(buffer);
+          this.verifiedSessionKey = (readInteger(buffer) == 1);
+          readSessionKeys(buffer);
         }
       } catch (FileNotFoundException e) {
         Log.w("SessionRecord", "No session information found.");
@@ -219,13 +282,43 @@ public class SessionRecord extends Record {
     }
   }
 
-  public SessionKey getSessionKey(int localKeyId, int remoteKeyId) {
-    if (this.sessionKeyRecord == null) return null;
+  private void loadLegacyData(ByteBuffer buffer) throws IOException {
+    int versionMarker = readInteger(buffer);
+
+    // Sigh, always put a version number on everything.
+    if (!isLegacyVersionMarker(versionMarker)) {
+      this.counter           = versionMarker;
+      this.localFingerprint  = readBlob(buffer);
+      this.remoteFingerprint = readBlob(buffer);
+      this.sessionVersion    = 31337;
+    } else {
+      this.counter           = readInteger(buffer);
+      this.localFingerprint  = readBlob(buffer);
+      this.remoteFingerprint = readBlob(buffer);
+      this.sessionVersion    = readInteger(buffer);
+
+      if (versionMarker >=  0X55555556) {
+        readIdentityKey(buffer);
+        this.verifiedSessionKey = (readInteger(buffer) == 1);
+      }
+
+      // Older records carried a single session key with no direction,
+      // which can't safely be reused, so only the keyed set is loaded.
+      if (versionMarker >= 0X55555557) {
+        readSessionKeys(buffer);
+      }
+    }
+  }
+
+  public SessionKey getSessionKey(int mode, int localKeyId, int remoteKeyId) {
+    return this.sessionKeys.get(getSessionKeyIndex(mode, localKeyId, remoteKeyId));
+  }
 
-    if ((this.sessionKeyRecord.getLocalKeyId() == localKeyId) &&
-        (this.sessionKeyRecord.getRemoteKeyId() == remoteKeyId))
-        return this.sessionKeyRecord;
+  private static long getSessionKeyIndex(int mode, int localKeyId, int remoteKeyId) {
+    return ((long)mode << 48) | ((long)(localKeyId & 0xFFFFFF) << 24) | (remoteKeyId & 0xFFFFFF);
+  }
 
-    return null;
+  private static int getSessionKeyMode(long index) {
+    return (int)(index >>> 48);
   }
 }
@@ -3,22 +3,94 @@ package org.thoughtcrime.securesms.database.loaders;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.v4.content.CursorLoader;
+import android.util.Log;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 
+/**
+ * Loads a window of the newest messages in a conversation, rather than the
+ * whole thread.
+ *
+ * The window is bounded below by a received date, so every reload (whether
+ * for new messages or for an older page) is a range scan from that date
+ * forward.  {@link #loadOlder()} moves the bound back by another page.
+ */
 public class ConversationLoader extends CursorLoader {
 
+  private static final String TAG = "ConversationLoader";
+
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
   private final Context context;
-  private final long threadId;
+  private final long    threadId;
+  private final int     pageSize;
+
+  private long    windowStart = -1;
+  private boolean backfillRequested;
+  private boolean hasOlder;
 
   public ConversationLoader(Context context, long threadId) {
+    this(context, threadId, DEFAULT_PAGE_SIZE);
+  }
+
+  public ConversationLoader(Context context, long threadId, int pageSize) {
     super(context);
     this.context  = context.getApplicationContext();
     this.threadId = threadId;
+    this.pageSize = pageSize;
   }
 
   @Override
   public Cursor loadInBackground() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    long           start    = System.currentTimeMillis();
+    long           windowStart;
+    boolean        backfill;
+
+    synchronized (this) {
+      windowStart = this.windowStart;
+      backfill    = this.backfillRequested || windowStart == -1;
+    }
+
+    if (backfill) {
+      long before = (windowStart == -1) ? Long.MAX_VALUE : windowStart;
+      long cutoff = database.getConversationCutoffDate(threadId, before, pageSize);
+
+      synchronized (this) {
+        this.windowStart       = windowStart = Math.max(cutoff, 0);
+        this.hasOlder          = cutoff != -1;
+        this.backfillRequested = false;
+      }
+    }
+
+    Cursor cursor = database.getConversation(threadId, windowStart);
+
+    Log.w(TAG, "Loaded " + (cursor == null ? 0 : cursor.getCount()) + " messages from " +
+               windowStart + " in " + (System.currentTimeMillis() - start) + "ms");
+
+    return cursor;
+  }
+
+  /**
+   * Extends the window back by another page and reloads, if the last load
+   * left older messages behind.
+   *
+   * @return Whether a load was started.
+   */
+  public boolean loadOlder() {
+    synchronized (this) {
+      if (!hasOlder || backfillRequested)
+        return false;
+
+      backfillRequested = true;
+    }
+
+    onContentChanged();
+    return true;
+  }
+
+  public synchronized boolean hasOlder() {
+    return hasOlder;
   }
 }
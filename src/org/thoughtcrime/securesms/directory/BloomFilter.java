@@ -17,13 +17,19 @@
 
 package org.thoughtcrime.securesms.directory;
 
+import android.util.Log;
+
 import org.thoughtcrime.securesms.util.Conversions;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.InvalidKeyException;
@@ -32,6 +38,11 @@ import java.security.NoSuchAlgorithmException;
 /**
  * A simple bloom filter implementation that backs the RedPhone directory.
  *
+ * The filter file is mapped once for the life of the instance, and each
+ * thread keeps one Mac per hash index already keyed with that index, so a
+ * lookup is just the HMACs and the bit tests.  Instances are safe to share
+ * between threads.
+ *
  * @author Moxie Marlinspike
  *
  */
@@ -41,14 +52,44 @@ public class BloomFilter {
   private final MappedByteBuffer buffer;
   private final long length;
   private final int hashCount;
+  private final SecretKeySpec[] keys;
+
+  private final ThreadLocal<Mac[]> macs = new ThreadLocal<Mac[]>() {
+    @Override
+    protected Mac[] initialValue() {
+      try {
+        Mac[] macs = new Mac[keys.length];
+
+        for (int i=0;i<macs.length;i++) {
+          macs[i] = Mac.getInstance("HmacSHA1");
+          macs[i].init(keys[i]);
+        }
+
+        return macs;
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      } catch (InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
 
   public BloomFilter(File bloomFilter, int hashCount)
       throws IOException
   {
-    this.length    = bloomFilter.length();
-    this.buffer    = new FileInputStream(bloomFilter).getChannel()
-                                                     .map(FileChannel.MapMode.READ_ONLY, 0, length);
-    this.hashCount = hashCount;
+    FileInputStream in = new FileInputStream(bloomFilter);
+
+    try {
+      this.length    = bloomFilter.length();
+      this.buffer    = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      this.hashCount = hashCount;
+      this.keys      = new SecretKeySpec[hashCount];
+
+      for (int i=0;i<hashCount;i++)
+        this.keys[i] = new SecretKeySpec((i+"").getBytes(), "HmacSHA1");
+    } finally {
+      in.close();
+    }
   }
 
   public int getHashCount() {
@@ -63,23 +104,55 @@ public class BloomFilter {
   }
 
   public boolean contains(String entity) {
+    Mac[]  macs        = this.macs.get();
+    byte[] entityBytes = entity.getBytes();
+
+    for (int i=0;i<this.hashCount;i++) {
+      byte[] hashValue = macs[i].doFinal(entityBytes);
+      long bitIndex    = Math.abs(Conversions.byteArrayToLong(hashValue, 0)) % (this.length * 8);
+
+      if (!isBitSet(bitIndex))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Applies a directory delta to a filter file in place.  A delta is a
+   * sequence of big-endian (int byte offset, byte mask) pairs, each of which
+   * flips the masked bits of that byte.
+   */
+  public static void patch(File bloomFilter, InputStream delta) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(bloomFilter, "rw");
+
     try {
-      for (int i=0;i<this.hashCount;i++) {
-        Mac mac = Mac.getInstance("HmacSHA1");
-        mac.init(new SecretKeySpec((i+"").getBytes(), "HmacSHA1"));
+      MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+      DataInputStream  in     = new DataInputStream(delta);
+      int              count  = 0;
+
+      while (true) {
+        int offset;
+
+        try {
+          offset = in.readInt();
+        } catch (EOFException e) {
+          break;
+        }
+
+        byte mask = in.readByte();
 
-        byte[] hashValue = mac.doFinal(entity.getBytes());
-        long bitIndex    = Math.abs(Conversions.byteArrayToLong(hashValue, 0)) % (this.length * 8);
+        if (offset < 0 || offset >= mapped.limit())
+          throw new IOException("Delta offset out of range: " + offset);
 
-        if (!isBitSet(bitIndex))
-          return false;
+        mapped.put(offset, (byte)(mapped.get(offset) ^ mask));
+        count++;
       }
 
-      return true;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
+      mapped.force();
+      Log.w("BloomFilter", "Applied " + count + " directory delta entries.");
+    } finally {
+      file.close();
     }
   }
 
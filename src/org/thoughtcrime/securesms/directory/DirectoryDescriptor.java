@@ -1,9 +1,18 @@
 package org.thoughtcrime.securesms.directory;
 
+/**
+ * The server's description of the current directory.  Besides the full
+ * filter, it may offer a delta that turns the filter at
+ * <code>deltaBaseVersion</code> into this one, along with the base64
+ * SHA-256 digest of the resulting filter to check the patched copy against.
+ */
 public class DirectoryDescriptor {
   private String version;
   private long capacity;
   private int hashCount;
+  private String deltaUrl;
+  private String deltaBaseVersion;
+  private String digest;
 
   public String getUrl() {
     return url;
@@ -21,6 +30,19 @@ public class DirectoryDescriptor {
     return version;
   }
 
+  public String getDeltaUrl() {
+    return deltaUrl;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  public boolean hasDeltaFrom(String version) {
+    return deltaUrl != null && digest != null &&
+           deltaBaseVersion != null && deltaBaseVersion.equals(version);
+  }
+
   private String url;
 
 }
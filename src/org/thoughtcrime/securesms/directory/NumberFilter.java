@@ -23,6 +23,7 @@ import android.util.Log;
 import com.google.thoughtcrimegson.Gson;
 import com.google.thoughtcrimegson.JsonParseException;
 import com.google.thoughtcrimegson.annotations.SerializedName;
+import org.thoughtcrime.securesms.crypto.CryptoPrimitives;
 import org.thoughtcrime.securesms.util.PhoneNumberFormatter;
 
 import java.io.BufferedReader;
@@ -33,6 +34,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Handles providing lookups, serializing, and deserializing the RedPhone directory.
@@ -60,6 +66,8 @@ public class NumberFilter {
   private int hashCount;
   private Context context;
 
+  private volatile BloomFilter filter;
+
   private NumberFilter(Context context, File bloomFilter, long capacity,
                        int hashCount, String version)
   {
@@ -68,33 +76,136 @@ public class NumberFilter {
     this.capacity    = capacity;
     this.hashCount   = hashCount;
     this.version     = version;
+    this.filter      = openFilter(bloomFilter, hashCount);
   }
 
-  public synchronized boolean containsNumber(String number) {
-    try {
-      if      (bloomFilter == null)                    return false;
-      else if (number == null || number.length() == 0) return false;
+  public boolean containsNumber(String number) {
+    BloomFilter filter = this.filter;
 
-      return new BloomFilter(bloomFilter, hashCount).contains(PhoneNumberFormatter.formatNumber(context, number));
-    } catch (IOException ioe) {
-      Log.w("NumberFilter", ioe);
-      return false;
+    if      (filter == null)                         return false;
+    else if (number == null || number.length() == 0) return false;
+
+    return filter.contains(PhoneNumberFormatter.formatNumber(context, number));
+  }
+
+  /**
+   * @return The subset of the given numbers that are in the directory.
+   */
+  public Set<String> containsNumbers(Collection<String> numbers) {
+    BloomFilter filter  = this.filter;
+    Set<String> results = new HashSet<String>();
+
+    if (filter == null)
+      return results;
+
+    for (String number : numbers) {
+      if (number != null && number.length() != 0 &&
+          filter.contains(PhoneNumberFormatter.formatNumber(context, number)))
+      {
+        results.add(number);
+      }
     }
+
+    return results;
   }
 
   public synchronized void update(File bloomFilter, long capacity, int hashCount, String version)
   {
-    if (this.bloomFilter != null)
-      this.bloomFilter.delete();
+    File previousBloomFilter = this.bloomFilter;
 
     this.bloomFilter = bloomFilter;
     this.capacity    = capacity;
     this.hashCount   = hashCount;
     this.version     = version;
+    this.filter      = openFilter(bloomFilter, hashCount);
+
+    // Readers still holding the old filter keep their mapping after this.
+    if (previousBloomFilter != null && !previousBloomFilter.equals(bloomFilter))
+      previousBloomFilter.delete();
 
     serializeToFile(context);
   }
 
+  public synchronized String getVersion() {
+    return version;
+  }
+
+  /**
+   * Brings the directory from its current version to <code>version</code>
+   * with a delta stream.  The delta is applied to a copy of the current
+   * filter, which is then swapped in, so lookups never see a partially
+   * patched filter and a failure leaves the current one untouched.  The
+   * copy is only swapped in if it matches <code>digest</code>, the SHA-256
+   * of the filter at <code>version</code>, so that a truncated or mismatched
+   * delta fails rather than silently corrupting the directory.
+   */
+  public synchronized void applyDelta(InputStream delta, String baseVersion,
+                                      String version, byte[] digest)
+      throws IOException
+  {
+    if (bloomFilter == null || !baseVersion.equals(this.version))
+      throw new IOException("Delta base " + baseVersion + " doesn't match " + this.version);
+
+    File patched = File.createTempFile("directory", ".dat", context.getFilesDir());
+
+    try {
+      copyFile(bloomFilter, patched);
+      BloomFilter.patch(patched, delta);
+
+      if (!MessageDigest.isEqual(digest, getDigest(patched)))
+        throw new IOException("Patched directory doesn't match version " + version);
+    } catch (IOException ioe) {
+      patched.delete();
+      throw ioe;
+    }
+
+    update(patched, capacity, hashCount, version);
+  }
+
+  private static byte[] getDigest(File file) throws IOException {
+    MessageDigest   digest = CryptoPrimitives.getSha256();
+    FileInputStream in     = new FileInputStream(file);
+
+    try {
+      byte[] buffer = new byte[4096];
+      int    read;
+
+      while ((read = in.read(buffer)) != -1)
+        digest.update(buffer, 0, read);
+
+      return digest.digest();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void copyFile(File from, File to) throws IOException {
+    FileChannel source      = new FileInputStream(from).getChannel();
+    FileChannel destination = new FileOutputStream(to).getChannel();
+
+    try {
+      long transferred = 0;
+
+      while (transferred < source.size())
+        transferred += destination.transferFrom(source, transferred, source.size() - transferred);
+    } finally {
+      source.close();
+      destination.close();
+    }
+  }
+
+  private static BloomFilter openFilter(File bloomFilter, int hashCount) {
+    if (bloomFilter == null)
+      return null;
+
+    try {
+      return new BloomFilter(bloomFilter, hashCount);
+    } catch (IOException ioe) {
+      Log.w("NumberFilter", ioe);
+      return null;
+    }
+  }
+
   private void serializeToFile(Context context) {
     if (this.bloomFilter == null)
       return;
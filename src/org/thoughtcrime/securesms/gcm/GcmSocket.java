@@ -13,6 +13,7 @@ import org.thoughtcrime.securesms.util.Util;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -81,40 +82,99 @@ public class GcmSocket {
       DirectoryDescriptor directoryDescriptor = new Gson().fromJson(makeRequest(DIRECTORY_PATH, "GET", null),
                                                                     DirectoryDescriptor.class);
 
+      NumberFilter numberFilter = NumberFilter.getInstance(context);
+      String currentVersion     = numberFilter.getVersion();
+
+      if (directoryDescriptor.getVersion() != null && directoryDescriptor.getVersion().equals(currentVersion)) {
+        Log.w("GcmSocket", "Directory is current at version: " + currentVersion);
+        return;
+      }
+
+      if (directoryDescriptor.hasDeltaFrom(currentVersion)) {
+        try {
+          retrieveDirectoryDelta(numberFilter, directoryDescriptor, currentVersion);
+          return;
+        } catch (IOException ioe) {
+          Log.w("GcmSocket", "Delta update failed, falling back to a full download.", ioe);
+        }
+      }
+
       File directoryData = downloadExternalFile(context, directoryDescriptor.getUrl());
 
-      NumberFilter.getInstance(context).update(directoryData,
-                                               directoryDescriptor.getCapacity(),
-                                               directoryDescriptor.getHashCount(),
-                                               directoryDescriptor.getVersion());
+      numberFilter.update(directoryData,
+                          directoryDescriptor.getCapacity(),
+                          directoryDescriptor.getHashCount(),
+                          directoryDescriptor.getVersion());
 
     } catch (IOException ioe) {
       Log.w("GcmSocket", ioe);
     }
   }
 
+  private void retrieveDirectoryDelta(NumberFilter numberFilter,
+                                      DirectoryDescriptor directoryDescriptor,
+                                      String currentVersion)
+      throws IOException
+  {
+    byte[] digest;
+
+    try {
+      digest = Base64.decode(directoryDescriptor.getDigest(), Base64.DEFAULT);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Bad directory digest: " + directoryDescriptor.getDigest());
+    }
+
+    InputStream delta = openExternalStream(directoryDescriptor.getDeltaUrl());
+
+    try {
+      numberFilter.applyDelta(new BufferedInputStream(delta), currentVersion,
+                              directoryDescriptor.getVersion(), digest);
+    } finally {
+      delta.close();
+    }
+  }
+
   private File downloadExternalFile(Context context, String url) throws IOException {
-    File download                 = File.createTempFile("directory", ".dat", context.getFilesDir());
+    InputStream input = openExternalStream(url);
+
+    try {
+      File download = File.createTempFile("directory", ".dat", context.getFilesDir());
+
+      try {
+        OutputStream output = new FileOutputStream(download);
+        int read            = 0;
+        byte[] buffer       = new byte[4096];
+
+        try {
+          while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+          }
+        } finally {
+          output.close();
+        }
+      } catch (IOException ioe) {
+        download.delete();
+        throw ioe;
+      }
+
+      return download;
+    } finally {
+      input.close();
+    }
+  }
+
+  private InputStream openExternalStream(String url) throws IOException {
     URL downloadUrl               = new URL(url);
     HttpsURLConnection connection = (HttpsURLConnection)downloadUrl.openConnection();
     connection.setDoInput(true);
 
     if (connection.getResponseCode() != 200) {
-      throw new IOException("Bad response: " + connection.getResponseCode());
-    }
-
-    OutputStream output = new FileOutputStream(download);
-    InputStream input   = new GZIPInputStream(connection.getInputStream());
-    int read            = 0;
-    byte[] buffer       = new byte[4096];
-
-    while ((read = input.read(buffer)) != -1) {
-      output.write(buffer, 0, read);
+      int responseCode = connection.getResponseCode();
+      connection.disconnect();
+      throw new IOException("Bad response: " + responseCode);
     }
 
-    output.close();
-
-    return download;
+    return new GZIPInputStream(connection.getInputStream());
   }
 
   private String makeRequest(String urlFragment, String method, String body) throws IOException {
@@ -36,7 +36,9 @@ import org.thoughtcrime.securesms.DatabaseUpgradeActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.RoutingActivity;
 import org.thoughtcrime.securesms.crypto.DecryptingQueue;
+import org.thoughtcrime.securesms.crypto.KeyPairPool;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.PlaintextCache;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 
 /**
@@ -76,6 +78,8 @@ public class KeyCachingService extends Service {
     broadcastNewSecret();
     startTimeoutIfAppropriate();
 
+    KeyPairPool.setMasterSecret(this, masterSecret);
+
     new Thread() {
       @Override
       public void run() {
@@ -131,6 +135,8 @@ public class KeyCachingService extends Service {
 
   private void handleClearKey() {
     this.masterSecret = null;
+    KeyPairPool.clearMasterSecret();
+    PlaintextCache.getInstance().clear();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
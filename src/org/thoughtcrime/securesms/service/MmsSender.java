@@ -198,8 +198,10 @@ public class MmsSender extends MmscProcessor {
   }
 
   private byte[] getEncryptedPdu(MasterSecret masterSecret, String recipient, byte[] pduBytes) {
-    synchronized (SessionCipher.CIPHER_LOCK) {
-      SessionCipher cipher = new SessionCipher(context, masterSecret, new Recipient(null, recipient, null, null), new TextTransport());
+    Recipient recipientObject = new Recipient(null, recipient, null, null);
+
+    synchronized (SessionCipher.getLock(context, recipientObject)) {
+      SessionCipher cipher = new SessionCipher(context, masterSecret, recipientObject, new TextTransport());
       return cipher.encryptMessage(pduBytes);
     }
   }
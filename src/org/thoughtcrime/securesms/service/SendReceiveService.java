@@ -31,7 +31,7 @@ import android.widget.Toast;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.CanonicalSessionMigrator;
-import org.thoughtcrime.securesms.util.WorkerThread;
+import org.thoughtcrime.securesms.util.WorkLane;
 
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -40,6 +40,11 @@ import java.util.List;
 /**
  * Services that handles sending/receiving of SMS/MMS.
  *
+ * Work is split into lanes, so that a slow MMS transfer or a backlog of
+ * sends can't hold up incoming messages or sent and delivery reports.
+ * Incoming messages run at a raised priority, with SMS and MMS on separate
+ * workers so that each stays in arrival order.
+ *
  * @author Moxie Marlinspike
  */
 
@@ -60,6 +65,12 @@ public class SendReceiveService extends Service {
   private static final int SEND_MMS              = 2;
   private static final int RECEIVE_MMS           = 3;
   private static final int DOWNLOAD_MMS          = 4;
+  private static final int SMS_STATUS            = 5;
+
+  // Each receive lane worker takes one kind of message, so the two don't
+  // wait on each other.  Each kind still runs in the order it arrived.
+  private static final int RECEIVE_SMS_PARTITION = 0;
+  private static final int RECEIVE_MMS_PARTITION = 1;
 
   private ToastHandler toastHandler;
 
@@ -74,9 +85,13 @@ public class SendReceiveService extends Service {
 
   private NewKeyReceiver newKeyReceiver;
   private ClearKeyReceiver clearKeyReceiver;
-  private List<Runnable> workQueue;
-  private List<Runnable> pendingSecretList;
-  private Thread workerThread;
+  private final Object secretLock = new Object();
+  private List<SendReceiveWorkItem> pendingSecretList;
+
+  private WorkLane receiveLane;
+  private WorkLane sendLane;
+  private WorkLane statusLane;
+  private WorkLane mmsLane;
 
   @Override
   public void onCreate() {
@@ -96,9 +111,9 @@ public class SendReceiveService extends Service {
     else if (intent.getAction().equals(RECEIVE_SMS_ACTION))
       scheduleIntent(RECEIVE_SMS, intent);
     else if (intent.getAction().equals(SENT_SMS_ACTION))
-      scheduleIntent(SEND_SMS, intent);
+      scheduleIntent(SMS_STATUS, intent);
     else if (intent.getAction().equals(DELIVERED_SMS_ACTION))
-      scheduleIntent(SEND_SMS, intent);
+      scheduleIntent(SMS_STATUS, intent);
     else if (intent.getAction().equals(SEND_MMS_ACTION) || intent.getAction().equals(SEND_MMS_CONNECTIVITY_ACTION))
       scheduleSecretRequiredIntent(SEND_MMS, intent);
     else if (intent.getAction().equals(RECEIVE_MMS_ACTION))
@@ -139,11 +154,11 @@ public class SendReceiveService extends Service {
   }
 
   private void initializeWorkQueue() {
-    pendingSecretList = new LinkedList<Runnable>();
-    workQueue         = new LinkedList<Runnable>();
-    workerThread      = new WorkerThread(workQueue, "SendReceveService-WorkerThread");
-
-    workerThread.start();
+    pendingSecretList = new LinkedList<SendReceiveWorkItem>();
+    receiveLane       = new WorkLane("SendReceiveService-Receive", 2, Thread.NORM_PRIORITY + 1);
+    sendLane          = new WorkLane("SendReceiveService-Send", 1, Thread.NORM_PRIORITY);
+    statusLane        = new WorkLane("SendReceiveService-Status", 1, Thread.NORM_PRIORITY);
+    mmsLane           = new WorkLane("SendReceiveService-Mms", 1, Thread.NORM_PRIORITY - 1);
   }
 
   private void initializeMasterSecret() {
@@ -165,15 +180,15 @@ public class SendReceiveService extends Service {
     Log.w("SendReceiveService", "SendReceive service got master secret.");
 
     if (masterSecret != null) {
-      synchronized (workQueue) {
+      synchronized (secretLock) {
         this.masterSecret = masterSecret;
         this.hasSecret    = true;
 
-        Iterator<Runnable> iterator = pendingSecretList.iterator();
-        while (iterator.hasNext())
-          workQueue.add(iterator.next());
-
-        workQueue.notifyAll();
+        Iterator<SendReceiveWorkItem> iterator = pendingSecretList.iterator();
+        while (iterator.hasNext()) {
+          enqueue(iterator.next());
+          iterator.remove();
+        }
       }
     }
   }
@@ -183,24 +198,36 @@ public class SendReceiveService extends Service {
   }
 
   private void scheduleIntent(int what, Intent intent) {
-    Runnable work = new SendReceiveWorkItem(intent, what);
+    SendReceiveWorkItem work = new SendReceiveWorkItem(intent, what);
 
-    synchronized (workQueue) {
-      workQueue.add(work);
-      workQueue.notifyAll();
+    synchronized (secretLock) {
+      enqueue(work);
     }
   }
 
   private void scheduleSecretRequiredIntent(int what, Intent intent) {
-    Runnable work = new SendReceiveWorkItem(intent, what);
-
-    synchronized (workQueue) {
-      if (hasSecret) {
-        workQueue.add(work);
-        workQueue.notifyAll();
-      } else {
-        pendingSecretList.add(work);
-      }
+    SendReceiveWorkItem work = new SendReceiveWorkItem(intent, what);
+
+    synchronized (secretLock) {
+      if (hasSecret) enqueue(work);
+      else           pendingSecretList.add(work);
+    }
+  }
+
+  /**
+   * Hands work to its lane, along with the secret as it stands right now.
+   * Callers must hold secretLock.
+   */
+  private void enqueue(SendReceiveWorkItem work) {
+    work.masterSecret = masterSecret;
+
+    switch (work.what) {
+    case RECEIVE_SMS:   receiveLane.add(RECEIVE_SMS_PARTITION, work); return;
+    case RECEIVE_MMS:   receiveLane.add(RECEIVE_MMS_PARTITION, work); return;
+    case SEND_SMS:      sendLane.add(work);                           return;
+    case SMS_STATUS:    statusLane.add(work);                         return;
+    case SEND_MMS:      mmsLane.add(work);                            return;
+    case DOWNLOAD_MMS:  mmsLane.add(work);                            return;
     }
   }
 
@@ -208,6 +235,8 @@ public class SendReceiveService extends Service {
     private final Intent intent;
     private final int what;
 
+    private MasterSecret masterSecret;
+
     public SendReceiveWorkItem(Intent intent, int what) {
       this.intent = intent;
       this.what   = what;
@@ -216,8 +245,9 @@ public class SendReceiveService extends Service {
     @Override
     public void run() {
       switch (what) {
-      case RECEIVE_SMS:	  smsReceiver.process(masterSecret, intent);   return;
-      case SEND_SMS:		  smsSender.process(masterSecret, intent);     return;
+      case RECEIVE_SMS:   smsReceiver.process(masterSecret, intent);   return;
+      case SEND_SMS:      smsSender.process(masterSecret, intent);     return;
+      case SMS_STATUS:    smsSender.process(masterSecret, intent);     return;
       case RECEIVE_MMS:   mmsReceiver.process(masterSecret, intent);   return;
       case SEND_MMS:      mmsSender.process(masterSecret, intent);     return;
       case DOWNLOAD_MMS:  mmsDownloader.process(masterSecret, intent); return;
@@ -263,42 +293,20 @@ public class SendReceiveService extends Service {
   /**
    * This class receives broadcast notifications to clear the MasterSecret.
    *
-   * We don't want to clear it immediately, since there are potentially jobs
-   * in the work queue which require the master secret.  Instead, we reset a
-   * flag so that new incoming jobs will be evaluated as if no mastersecret is
-   * present.
-   *
-   * Then, we add a job to the end of the queue which actually clears the masterSecret
-   * value.  That way all jobs before this moment will be processed correctly, and all
-   * jobs after this moment will be evaluated as if no mastersecret is present (and potentially
-   * held).
-   *
-   * When we go to actually clear the mastersecret, we ensure that the flag is still false.
-   * This allows a new mastersecret broadcast to come in correctly without us clobbering it.
-   *
+   * There are potentially jobs in the lanes which require the master secret,
+   * but each job captured the secret when it was handed to its lane.  So we
+   * can clear it immediately: all jobs before this moment will be processed
+   * with the secret, and all jobs after this moment will be evaluated as if
+   * no mastersecret is present (and potentially held until a new one arrives).
    */
   private class ClearKeyReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
       Log.w("SendReceiveService", "Got a clear mastersecret broadcast...");
 
-      synchronized (workQueue) {
-        SendReceiveService.this.hasSecret = false;
-        workQueue.add(new Runnable() {
-          @Override
-          public void run() {
-            Log.w("SendReceiveService", "Running clear key work item...");
-
-            synchronized (workQueue) {
-              if (!SendReceiveService.this.hasSecret) {
-                Log.w("SendReceiveService", "Actually clearing key...");
-                SendReceiveService.this.masterSecret = null;
-              }
-            }
-          }
-        });
-
-        workQueue.notifyAll();
+      synchronized (secretLock) {
+        SendReceiveService.this.hasSecret    = false;
+        SendReceiveService.this.masterSecret = null;
       }
     }
   };
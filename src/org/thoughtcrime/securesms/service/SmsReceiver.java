@@ -44,12 +44,13 @@ import java.util.List;
 
 public class SmsReceiver {
 
-  private MultipartSmsMessageHandler multipartMessageHandler = new MultipartSmsMessageHandler();
+  private final MultipartSmsMessageHandler multipartMessageHandler;
 
   private final Context context;
 
   public SmsReceiver(Context context) {
-    this.context      = context;
+    this.context                 = context;
+    this.multipartMessageHandler = new MultipartSmsMessageHandler(context);
   }
 
 
@@ -60,6 +60,19 @@ public class IncomingTextMessage implements Parcelable {
     this.sentTimestampMillis  = in.readLong();
   }
 
+  public IncomingTextMessage(String message, String sender, int protocol,
+                             String serviceCenterAddress, boolean replyPathPresent,
+                             String pseudoSubject, long sentTimestampMillis)
+  {
+    this.message              = message;
+    this.sender               = sender;
+    this.protocol             = protocol;
+    this.serviceCenterAddress = serviceCenterAddress;
+    this.replyPathPresent     = replyPathPresent;
+    this.pseudoSubject        = pseudoSubject;
+    this.sentTimestampMillis  = sentTimestampMillis;
+  }
+
   public IncomingTextMessage(IncomingTextMessage base, String newBody) {
     this.message              = newBody;
     this.sender               = base.getSender();
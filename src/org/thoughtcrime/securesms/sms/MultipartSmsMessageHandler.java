@@ -16,38 +16,42 @@
  */
 package org.thoughtcrime.securesms.sms;
 
+import android.content.Context;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.util.Base64;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 public class MultipartSmsMessageHandler {
 
-  private final HashMap<String, MultipartSmsTransportMessageFragments> partialMessages =
-      new HashMap<String, MultipartSmsTransportMessageFragments>();
+  private final MultipartSmsReassemblyStore partialMessages;
 
   private final HashMap<String, Integer>  idMap = new HashMap<String, Integer>();
 
-  private IncomingTextMessage processMultipartMessage(MultipartSmsTransportMessage message) {
-    Log.w("MultipartSmsMessageHandler", "Processing multipart message...");
-    MultipartSmsTransportMessageFragments container = partialMessages.get(message.getKey());
+  public MultipartSmsMessageHandler() {
+    this.partialMessages = new MultipartSmsReassemblyStore();
+  }
 
-    if (container == null) {
-      container = new MultipartSmsTransportMessageFragments(message.getMultipartCount());
-      partialMessages.put(message.getKey(), container);
-    }
+  public MultipartSmsMessageHandler(Context context) {
+    this.partialMessages = new MultipartSmsReassemblyStore(new File(context.getFilesDir(), "multipart"));
+  }
 
-    container.add(message);
+  private IncomingTextMessage processMultipartMessage(MultipartSmsTransportMessage message) {
+    Log.w("MultipartSmsMessageHandler", "Processing multipart message...");
+    MultipartSmsTransportMessageFragments container = partialMessages.add(message);
 
-    Log.w("MultipartSmsMessageHandler", "Filled buffer at index: " + message.getMultipartIndex());
+    Log.w("MultipartSmsMessageHandler", "Filled buffer at index: " + message.getMultipartIndex() +
+                                        " incomplete: " + partialMessages.getIncompleteCount() +
+                                        " completed: " + partialMessages.getCompletedCount() +
+                                        " expired: " + partialMessages.getExpiredCount());
 
-    if (!container.isComplete())
+    if (container == null)
       return null;
 
-    partialMessages.remove(message.getKey());
     String strippedMessage = Base64.encodeBytesWithoutPadding(container.getJoined());
 
     if (message.getWireType() == MultipartSmsTransportMessage.WIRETYPE_KEY) {
@@ -0,0 +1,365 @@
+/**
+ * Copyright (C) 2013 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.sms;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the fragments of multipart messages until every part has arrived.
+ *
+ * Partial messages are kept in creation order and dropped once they're
+ * older than a day.  When a directory is supplied, every fragment is also
+ * appended to a per-message file there, so that partial messages survive
+ * the process dying; the in-memory copies of the oldest messages are then
+ * dropped whenever the fragments held in memory exceed a fixed budget, and
+ * read back from disk if another of their fragments arrives.  Without a
+ * directory, messages over the budget are dropped instead.
+ *
+ * A message's file starts with the time its first fragment arrived, which
+ * expiry is measured from after a restart.
+ */
+public class MultipartSmsReassemblyStore {
+
+  private static final String TAG = "MultipartSmsReassemblyStore";
+
+  private static final long MAX_AGE_MILLIS   = 24 * 60 * 60 * 1000;
+  private static final int  MAX_MEMORY_BYTES = 64 * 1024;
+  private static final int  FILE_MAGIC       = 0x4D535246;
+
+  private final File                                  directory;
+  private final LinkedHashMap<String, PartialMessage> partialMessages = new LinkedHashMap<String, PartialMessage>();
+
+  private int  memoryBytes;
+  private long completedCount;
+  private long expiredCount;
+
+  public MultipartSmsReassemblyStore() {
+    this(null);
+  }
+
+  public MultipartSmsReassemblyStore(File directory) {
+    this.directory = directory;
+
+    if (directory != null) {
+      directory.mkdirs();
+      loadPartialMessages();
+    }
+  }
+
+  /**
+   * Adds a fragment to its message.
+   *
+   * @return The message's fragments if this completed it, otherwise null.
+   */
+  public synchronized MultipartSmsTransportMessageFragments add(MultipartSmsTransportMessage message) {
+    long   now = System.currentTimeMillis();
+    String key = message.getKey();
+
+    expire(now);
+
+    PartialMessage                        partial   = partialMessages.get(key);
+    MultipartSmsTransportMessageFragments fragments = null;
+
+    if (partial != null && partial.count == message.getMultipartCount())
+      fragments = getFragments(key, partial);
+
+    if (fragments == null) {
+      if (partial != null) {
+        Log.w(TAG, "Discarding unusable partial message: " + key);
+        remove(key);
+      }
+
+      fragments = new MultipartSmsTransportMessageFragments(message.getMultipartCount(), now);
+      partial   = new PartialMessage(message.getMultipartCount(), now);
+
+      partial.fragments = fragments;
+      partialMessages.put(key, partial);
+    }
+
+    memoryBytes -= fragments.getSize();
+    fragments.add(message);
+    memoryBytes += fragments.getSize();
+
+    if (fragments.isComplete()) {
+      remove(key);
+      completedCount++;
+      return fragments;
+    }
+
+    append(key, partial.created, message.getBaseMessage());
+    trimToBudget(key);
+
+    return null;
+  }
+
+  public synchronized int getIncompleteCount() {
+    return partialMessages.size();
+  }
+
+  public synchronized long getCompletedCount() {
+    return completedCount;
+  }
+
+  public synchronized long getExpiredCount() {
+    return expiredCount;
+  }
+
+  private MultipartSmsTransportMessageFragments getFragments(String key, PartialMessage partial) {
+    if (partial.fragments != null)
+      return partial.fragments;
+
+    MultipartSmsTransportMessageFragments fragments =
+        new MultipartSmsTransportMessageFragments(partial.count, partial.created);
+
+    try {
+      for (IncomingTextMessage stored : read(getFile(key)).fragments) {
+        MultipartSmsTransportMessage fragment = new MultipartSmsTransportMessage(stored);
+
+        if (fragment.getMultipartCount() != partial.count || fragment.isInvalid())
+          return null;
+
+        fragments.add(fragment);
+      }
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+      return null;
+    }
+
+    partial.fragments = fragments;
+    memoryBytes      += fragments.getSize();
+
+    return fragments;
+  }
+
+  private void expire(long now) {
+    Iterator<Map.Entry<String, PartialMessage>> iterator = partialMessages.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<String, PartialMessage> entry = iterator.next();
+
+      if (now - entry.getValue().created < MAX_AGE_MILLIS)
+        break;
+
+      Log.w(TAG, "Expiring partial message: " + entry.getKey());
+      release(entry.getKey(), entry.getValue());
+      iterator.remove();
+      expiredCount++;
+    }
+  }
+
+  private void trimToBudget(String currentKey) {
+    Iterator<Map.Entry<String, PartialMessage>> iterator = partialMessages.entrySet().iterator();
+
+    while (memoryBytes > MAX_MEMORY_BYTES && iterator.hasNext()) {
+      Map.Entry<String, PartialMessage> entry = iterator.next();
+
+      if (entry.getKey().equals(currentKey) || entry.getValue().fragments == null)
+        continue;
+
+      if (directory != null) {
+        memoryBytes                -= entry.getValue().fragments.getSize();
+        entry.getValue().fragments  = null;
+      } else {
+        Log.w(TAG, "Over budget, dropping partial message: " + entry.getKey());
+        release(entry.getKey(), entry.getValue());
+        iterator.remove();
+        expiredCount++;
+      }
+    }
+  }
+
+  private void remove(String key) {
+    PartialMessage partial = partialMessages.remove(key);
+
+    if (partial != null)
+      release(key, partial);
+  }
+
+  private void release(String key, PartialMessage partial) {
+    if (partial.fragments != null)
+      memoryBytes -= partial.fragments.getSize();
+
+    if (directory != null)
+      getFile(key).delete();
+  }
+
+  private void loadPartialMessages() {
+    File[] files = directory.listFiles();
+
+    if (files == null)
+      return;
+
+    Map<String, PartialMessage> loaded = new HashMap<String, PartialMessage>();
+
+    for (File file : files) {
+      try {
+        StoredMessage stored = read(file);
+
+        if (stored.fragments.isEmpty()) {
+          file.delete();
+          continue;
+        }
+
+        MultipartSmsTransportMessage fragment = new MultipartSmsTransportMessage(stored.fragments.get(0));
+        PartialMessage               partial  = new PartialMessage(fragment.getMultipartCount(), stored.created);
+
+        loaded.put(fragment.getKey(), partial);
+      } catch (IOException ioe) {
+        Log.w(TAG, ioe);
+        file.delete();
+      }
+    }
+
+    // The map is kept in creation order, which expiry relies on.
+    List<Map.Entry<String, PartialMessage>> sorted = new LinkedList<Map.Entry<String, PartialMessage>>(loaded.entrySet());
+
+    Collections.sort(sorted, new Comparator<Map.Entry<String, PartialMessage>>() {
+      @Override
+      public int compare(Map.Entry<String, PartialMessage> lhs, Map.Entry<String, PartialMessage> rhs) {
+        long difference = lhs.getValue().created - rhs.getValue().created;
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+      }
+    });
+
+    for (Map.Entry<String, PartialMessage> entry : sorted)
+      partialMessages.put(entry.getKey(), entry.getValue());
+
+    Log.w(TAG, "Loaded " + partialMessages.size() + " partial messages.");
+  }
+
+  private File getFile(String key) {
+    return new File(directory, key.replaceAll("[^A-Za-z0-9+]", "_"));
+  }
+
+  private void append(String key, long created, IncomingTextMessage message) {
+    if (directory == null)
+      return;
+
+    try {
+      File             file  = getFile(key);
+      boolean          isNew = file.length() == 0;
+      DataOutputStream out   = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+
+      try {
+        if (isNew) {
+          out.writeInt(FILE_MAGIC);
+          out.writeLong(created);
+        }
+
+        writeString(out, message.getMessageBody());
+        writeString(out, message.getSender());
+        out.writeInt(message.getProtocol());
+        writeString(out, message.getServiceCenterAddress());
+        out.writeBoolean(message.isReplyPathPresent());
+        writeString(out, message.getPseudoSubject());
+        out.writeLong(message.getSentTimestampMillis());
+      } finally {
+        out.close();
+      }
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+    }
+  }
+
+  private static StoredMessage read(File file) throws IOException {
+    DataInputStream           in       = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    List<IncomingTextMessage> messages = new LinkedList<IncomingTextMessage>();
+    long                      created  = file.lastModified();
+
+    try {
+      // Files written before the header was added start with a fragment.
+      in.mark(4);
+
+      try {
+        if (in.readInt() == FILE_MAGIC) created = in.readLong();
+        else                            in.reset();
+      } catch (EOFException e) {
+        return new StoredMessage(created, messages);
+      }
+
+      while (true) {
+        String message;
+
+        try {
+          message = readString(in);
+        } catch (EOFException e) {
+          break;
+        }
+
+        messages.add(new IncomingTextMessage(message, readString(in), in.readInt(),
+                                             readString(in), in.readBoolean(),
+                                             readString(in), in.readLong()));
+      }
+    } catch (EOFException e) {
+      Log.w(TAG, "Ignoring truncated fragment in: " + file);
+    } finally {
+      in.close();
+    }
+
+    return new StoredMessage(created, messages);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) out.writeUTF(value);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    if (in.readBoolean()) return in.readUTF();
+    else                  return null;
+  }
+
+  private static class StoredMessage {
+    private final long                      created;
+    private final List<IncomingTextMessage> fragments;
+
+    public StoredMessage(long created, List<IncomingTextMessage> fragments) {
+      this.created   = created;
+      this.fragments = fragments;
+    }
+  }
+
+  private static class PartialMessage {
+    private final int  count;
+    private final long created;
+
+    private MultipartSmsTransportMessageFragments fragments;
+
+    public PartialMessage(int count, long created) {
+      this.count   = count;
+      this.created = created;
+    }
+  }
+}
@@ -3,30 +3,44 @@ package org.thoughtcrime.securesms.sms;
 public class MultipartSmsTransportMessageFragments {
 
   private final byte[][] fragments;
+  private final long     created;
 
-  public MultipartSmsTransportMessageFragments(int count) {
+  private int received;
+  private int length;
+
+  public MultipartSmsTransportMessageFragments(int count, long created) {
     this.fragments = new byte[count][];
+    this.created   = created;
   }
 
   public void add(MultipartSmsTransportMessage fragment) {
-    this.fragments[fragment.getMultipartIndex()] = fragment.getStrippedMessage();
+    int    index    = fragment.getMultipartIndex();
+    byte[] stripped = fragment.getStrippedMessage();
+
+    if (this.fragments[index] == null) {
+      received++;
+    } else {
+      length -= this.fragments[index].length;
+    }
+
+    this.fragments[index] = stripped;
+    length               += stripped.length;
   }
 
   public boolean isComplete() {
-    for (int i=0;i<fragments.length;i++)
-      if (fragments[i] == null) return false;
-
-    return true;
+    return received == fragments.length;
   }
 
-  public byte[] getJoined() {
-    int totalMessageLength = 0;
+  public long getCreated() {
+    return created;
+  }
 
-    for (int i=0;i<fragments.length;i++) {
-      totalMessageLength += fragments[i].length;
-    }
+  public int getSize() {
+    return length;
+  }
 
-    byte[] totalMessage    = new byte[totalMessageLength];
+  public byte[] getJoined() {
+    byte[] totalMessage    = new byte[length];
     int totalMessageOffset = 0;
 
     for (int i=0;i<fragments.length;i++) {
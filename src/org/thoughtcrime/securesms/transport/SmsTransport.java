@@ -128,7 +128,7 @@ public class SmsTransport {
   }
 
   private String getAsymmetricEncrypt(MasterSecret masterSecret, String body, Recipient recipient) {
-    synchronized (SessionCipher.CIPHER_LOCK) {
+    synchronized (SessionCipher.getLock(context, recipient)) {
       SessionCipher cipher = new SessionCipher(context, masterSecret, recipient, new SmsTransportDetails());
       return new String(cipher.encryptMessage(body.getBytes()));
     }
@@ -0,0 +1,93 @@
+package org.thoughtcrime.securesms.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from primitive longs to values, for caches that are read far more
+ * often than they're written.
+ *
+ * Reads take no lock and don't box their key.  Writes are serialized, and
+ * entries can be added or replaced but never removed.  A reader racing with
+ * a resize may miss an entry added during it, which is fine for a cache
+ * that falls back to its backing store.
+ */
+public class ConcurrentLongMap<V> {
+
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private volatile Table<V> table;
+  private int size;
+
+  public ConcurrentLongMap(int initialCapacity) {
+    int capacity = 16;
+
+    while (capacity * LOAD_FACTOR < initialCapacity)
+      capacity <<= 1;
+
+    this.table = new Table<V>(capacity);
+  }
+
+  public V get(long key) {
+    Table<V> table = this.table;
+    int      mask  = table.keys.length - 1;
+
+    for (int i=hash(key) & mask;;i=(i+1) & mask) {
+      V value = table.values.get(i);
+
+      if (value == null)        return null;
+      if (table.keys[i] == key) return value;
+    }
+  }
+
+  public synchronized void put(long key, V value) {
+    if (value == null)
+      throw new IllegalArgumentException("Null values aren't supported.");
+
+    if (!table.put(key, value) && ++size > table.keys.length * LOAD_FACTOR) {
+      Table<V> resized = new Table<V>(table.keys.length * 2);
+
+      for (int i=0;i<table.keys.length;i++) {
+        V existing = table.values.get(i);
+        if (existing != null) resized.put(table.keys[i], existing);
+      }
+
+      this.table = resized;
+    }
+  }
+
+  private static int hash(long key) {
+    int hash = (int)(key ^ (key >>> 32));
+    return hash ^ (hash >>> 16);
+  }
+
+  private static class Table<V> {
+    private final long[]                  keys;
+    private final AtomicReferenceArray<V> values;
+
+    public Table(int capacity) {
+      this.keys   = new long[capacity];
+      this.values = new AtomicReferenceArray<V>(capacity);
+    }
+
+    /**
+     * Writes the key before the value, so a reader that sees the value
+     * through the volatile read also sees its key.
+     *
+     * @return true if an existing entry was replaced.
+     */
+    public boolean put(long key, V value) {
+      int mask = keys.length - 1;
+
+      for (int i=hash(key) & mask;;i=(i+1) & mask) {
+        if (values.get(i) == null) {
+          keys[i] = key;
+          values.set(i, value);
+          return false;
+        } else if (keys[i] == key) {
+          values.set(i, value);
+          return true;
+        }
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import android.widget.EditText;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -40,6 +41,8 @@ import ws.com.google.android.mms.pdu.EncodedStringValue;
 
 public class Util {
 
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+
   public static byte[] combine(byte[] one, byte[] two) {
     byte[] combined = new byte[one.length + two.length];
     System.arraycopy(one, 0, combined, 0, one.length);
@@ -184,6 +187,66 @@ public class Util {
     return new String(bout.toByteArray());
   }
 
+  /**
+   * Reads a stream to its end straight into an array sized by
+   * <code>sizeHint</code>, which is only grown if the stream turns out to be
+   * longer.  The array is returned as is when the hint was exact, and
+   * otherwise trimmed with a single copy.  The stream is closed.
+   */
+  public static byte[] readBytes(InputStream in, long sizeHint) throws IOException {
+    byte[] data  = new byte[(int)Math.max(0, Math.min(sizeHint, Integer.MAX_VALUE))];
+    int    total = 0;
+    int    read;
+
+    try {
+      while (true) {
+        if (total == data.length) {
+          // Probe for the end before growing, so an exact hint costs nothing.
+          int next = in.read();
+
+          if (next == -1)
+            break;
+
+          byte[] grown = new byte[Math.max(data.length * 2, total + IO_BUFFER_SIZE)];
+          System.arraycopy(data, 0, grown, 0, total);
+          data          = grown;
+          data[total++] = (byte)next;
+        }
+
+        if ((read = in.read(data, total, data.length - total)) == -1)
+          break;
+
+        total += read;
+      }
+    } finally {
+      in.close();
+    }
+
+    if (total == data.length)
+      return data;
+
+    byte[] trimmed = new byte[total];
+    System.arraycopy(data, 0, trimmed, 0, total);
+
+    return trimmed;
+  }
+
+  /**
+   * Copies a stream to its end.  Neither stream is closed.
+   */
+  public static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[IO_BUFFER_SIZE];
+    long   total  = 0;
+    int    read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+      total += read;
+    }
+
+    return total;
+  }
+
   //  public static Bitmap loadScaledBitmap(InputStream src, int targetWidth, int targetHeight) {
   //    return BitmapFactory.decodeStream(src);
   ////  BitmapFactory.Options options = new BitmapFactory.Options();
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2013 Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.thoughtcrime.securesms.util;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed set of worker threads running one class of work.
+ *
+ * Each worker has its own queue, and work is assigned to a worker by
+ * partition, so that work sharing a partition always runs in the order it
+ * was added while other partitions proceed concurrently.  The lane tracks
+ * how much work is waiting and how long it waited before it started.
+ */
+public class WorkLane {
+
+  private final String               name;
+  private final List<List<Runnable>> workQueues;
+  private final AtomicInteger        pendingCount   = new AtomicInteger(0);
+  private final AtomicLong           processedCount = new AtomicLong(0);
+  private final AtomicLong           totalLatency   = new AtomicLong(0);
+  private final AtomicLong           maxLatency     = new AtomicLong(0);
+
+  public WorkLane(String name, int threads, int priority) {
+    this.name       = name;
+    this.workQueues = new ArrayList<List<Runnable>>(threads);
+
+    for (int i=0;i<threads;i++) {
+      List<Runnable> workQueue = new LinkedList<Runnable>();
+      Thread workerThread      = new WorkerThread(workQueue, name + "-WorkerThread-" + i);
+
+      workerThread.setPriority(priority);
+      workQueues.add(workQueue);
+      workerThread.start();
+    }
+  }
+
+  public void add(Runnable runnable) {
+    add(0, runnable);
+  }
+
+  public void add(int partition, final Runnable runnable) {
+    List<Runnable> workQueue = workQueues.get((partition & 0x7fffffff) % workQueues.size());
+    final long     queued    = System.currentTimeMillis();
+
+    pendingCount.incrementAndGet();
+
+    synchronized (workQueue) {
+      workQueue.add(new Runnable() {
+        @Override
+        public void run() {
+          recordLatency(System.currentTimeMillis() - queued);
+
+          try {
+            runnable.run();
+          } finally {
+            processedCount.incrementAndGet();
+
+            if (pendingCount.decrementAndGet() == 0)
+              Log.w(name, "Drained, processed: " + getProcessedCount() +
+                          " average latency: " + getAverageLatency() + "ms" +
+                          " max latency: " + getMaxLatency() + "ms");
+          }
+        }
+      });
+      workQueue.notifyAll();
+    }
+  }
+
+  /**
+   * @return The amount of work queued or running in this lane.
+   */
+  public int getQueueDepth() {
+    return pendingCount.get();
+  }
+
+  /**
+   * @return The amount of work completed since the lane was created.
+   */
+  public long getProcessedCount() {
+    return processedCount.get();
+  }
+
+  /**
+   * @return The mean time work waited in the queue before starting, in millis.
+   */
+  public long getAverageLatency() {
+    long processed = processedCount.get();
+
+    if (processed == 0) return 0;
+    else                return totalLatency.get() / processed;
+  }
+
+  /**
+   * @return The longest time any work waited in the queue before starting, in millis.
+   */
+  public long getMaxLatency() {
+    return maxLatency.get();
+  }
+
+  private void recordLatency(long latency) {
+    totalLatency.addAndGet(latency);
+
+    long max;
+
+    do {
+      max = maxLatency.get();
+    } while (latency > max && !maxLatency.compareAndSet(max, latency));
+  }
+}